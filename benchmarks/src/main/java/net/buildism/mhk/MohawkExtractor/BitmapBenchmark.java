@@ -0,0 +1,70 @@
+package net.buildism.mhk.MohawkExtractor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Measures decompressing a single 608x392 bitmap of each form and converting it to RGB. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BitmapBenchmark {
+
+  @Param({"RIVEN", "PLAIN8", "RGB24", "RLE8", "LZ", "LZ_RLE8"})
+  SyntheticArchive.BitmapForm form;
+
+  private byte[] data;
+  private MohawkBitmap bitmap;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    data = resourceData(form);
+    bitmap = MohawkBitmap.read(ByteBuffer.wrap(data));
+  }
+
+  /** Returns the tBMP data of a generated 608x392 bitmap of the given form. */
+  static byte[] resourceData(SyntheticArchive.BitmapForm form) throws IOException {
+    Path path = Files.createTempFile("bitmap", ".mhk");
+    try {
+      new SyntheticArchive().addBitmap(1, null, form, 608, 392).write(path);
+      try (MohawkArchive archive = MohawkArchive.open(path)) {
+        ByteBuffer resource = archive.get("tBMP", 1).getData();
+        byte[] data = new byte[resource.remaining()];
+        resource.get(data);
+        return data;
+      }
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  /** Parses the header and palette and decompresses the pixel data. */
+  @Benchmark
+  public MohawkBitmap decode() {
+    return MohawkBitmap.read(ByteBuffer.wrap(data));
+  }
+
+  /** Applies the palette, producing one RGB value per pixel. */
+  @Benchmark
+  public MohawkBitmap convert() {
+    return bitmap.toRgb();
+  }
+}
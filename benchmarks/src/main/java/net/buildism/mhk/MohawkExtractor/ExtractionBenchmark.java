@@ -0,0 +1,106 @@
+package net.buildism.mhk.MohawkExtractor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a full extraction run over a directory of generated archives. Besides runs per second,
+ * JMH reports the {@code megabytes} of archive and {@code images} extracted per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ExtractionBenchmark {
+
+  private static final int ARCHIVES = 4;
+
+  @Param({"8"})
+  int bitmapsPerForm;
+
+  @Param({"", "--threads 0", "--pipeline --threads 0"})
+  String mode;
+
+  private Path inputDir;
+  private Path outputDir;
+  private long archiveBytes;
+  private PrintStream stdout;
+
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class Throughput {
+    public double megabytes;
+    public long images;
+  }
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    inputDir = Files.createTempDirectory("extract-in");
+    outputDir = Files.createTempDirectory("extract-out");
+    SyntheticArchive synthetic = SyntheticArchive.standard(bitmapsPerForm);
+    for (int i = 0; i < ARCHIVES; i++) {
+      Path archive = inputDir.resolve("stack" + i + ".mhk");
+      synthetic.write(archive);
+      archiveBytes += Files.size(archive);
+    }
+    // The extractor logs every resource; keep that out of the measurements.
+    stdout = System.out;
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    System.setOut(stdout);
+    delete(inputDir);
+    delete(outputDir);
+  }
+
+  @Setup(Level.Invocation)
+  public void clearOutput() throws IOException {
+    delete(outputDir);
+    Files.createDirectories(outputDir);
+  }
+
+  @Benchmark
+  public void extract(Throughput throughput) throws Exception {
+    String args = mode + " --output " + outputDir + " " + inputDir;
+    MohawkExtractor.main(args.trim().split(" +"));
+    throughput.megabytes += archiveBytes / (1024.0 * 1024.0);
+    throughput.images +=
+        (long) ARCHIVES * SyntheticArchive.BitmapForm.values().length * bitmapsPerForm;
+  }
+
+  private static void delete(Path path) throws IOException {
+    if (!Files.exists(path)) {
+      return;
+    }
+    try (Stream<Path> paths = Files.walk(path)) {
+      for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(p);
+      }
+    }
+  }
+}
@@ -0,0 +1,87 @@
+package net.buildism.mhk.MohawkExtractor;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Measures opening an archive and reading its resource directory. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IndexBenchmark {
+
+  @Param({"16", "256"})
+  int bitmapsPerForm;
+
+  private Path archive;
+  private Path index;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    archive = Files.createTempFile("index", ".mhk");
+    SyntheticArchive synthetic = new SyntheticArchive();
+    for (int i = 0; i < 3 * bitmapsPerForm; i++) {
+      // Small bitmaps, since only the directory is read.
+      synthetic.addBitmap(i + 1, "bitmap" + i, SyntheticArchive.BitmapForm.PLAIN8, 2, 2);
+    }
+    synthetic.write(archive);
+    index = Path.of(archive + "idx");
+    MohawkArchive.open(archive, index).close();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    Files.delete(archive);
+    Files.delete(index);
+  }
+
+  /** Opens the archive; only the header, type table and file table are read. */
+  @Benchmark
+  public MohawkArchive open() throws IOException {
+    try (MohawkArchive mohawk = MohawkArchive.open(archive)) {
+      return mohawk;
+    }
+  }
+
+  /** Opens the archive and reads the resource and name tables of every type. */
+  @Benchmark
+  public int openAndIndex() throws IOException {
+    try (MohawkArchive mohawk = MohawkArchive.open(archive)) {
+      int count = 0;
+      for (String type : mohawk.getTypes()) {
+        count += mohawk.getResourceIds(type).size();
+      }
+      return count;
+    }
+  }
+
+  /** Like {@link #openAndIndex()}, but through the sidecar index written in setup. */
+  @Benchmark
+  public int openWithSidecarIndex() throws IOException {
+    try (MohawkArchive mohawk = MohawkArchive.open(archive, index)) {
+      int count = 0;
+      for (String type : mohawk.getTypes()) {
+        count += mohawk.getResourceIds(type).size();
+      }
+      return count;
+    }
+  }
+}
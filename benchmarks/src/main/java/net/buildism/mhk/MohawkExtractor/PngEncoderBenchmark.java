@@ -0,0 +1,71 @@
+package net.buildism.mhk.MohawkExtractor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Measures PNG encoding of a decoded 608x392 bitmap, discarding the output. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PngEncoderBenchmark {
+
+  @Param({"RIVEN", "RGB24"})
+  SyntheticArchive.BitmapForm form;
+
+  @Param({"fast", "balanced", "max"})
+  String level;
+
+  @Param({"ADAPTIVE", "NONE"})
+  PngEncoder.Filter filter;
+
+  @Param({"false", "true"})
+  boolean indexed;
+
+  private MohawkBitmap bitmap;
+  private PngEncoder encoder;
+  private final CountingOutputStream out = new CountingOutputStream();
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    bitmap = MohawkBitmap.read(ByteBuffer.wrap(BitmapBenchmark.resourceData(form)));
+    encoder = new PngEncoder(PngEncoder.parseLevel(level), filter, indexed);
+  }
+
+  @Benchmark
+  public long encode() throws IOException {
+    encoder.write(bitmap, out);
+    return out.count;
+  }
+
+  private static class CountingOutputStream extends OutputStream {
+    long count;
+
+    @Override
+    public void write(int b) {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+}
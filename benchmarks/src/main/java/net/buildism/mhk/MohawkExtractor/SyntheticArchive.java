@@ -0,0 +1,504 @@
+package net.buildism.mhk.MohawkExtractor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Writes MHWK/RSRC archives filled with generated resources, so the extractor can be measured
+ * without the game data. Bitmaps come in each tBMP form the extractor supports, and movies are
+ * minimal QuickTime files whose stco chunk offsets point into the archive like Riven's do.
+ */
+public class SyntheticArchive {
+
+  public enum BitmapForm { RGB24, PLAIN8, RIVEN, RLE8, LZ, LZ_RLE8 }
+
+  private static final int HEADER_SIZE = 28;
+
+  private final List<Entry> entries = new ArrayList<>();
+
+  /** Returns an archive with {@code count} Riven-sized bitmaps of each form and a few movies. */
+  public static SyntheticArchive standard(int count) {
+    SyntheticArchive archive = new SyntheticArchive();
+    int id = 1;
+    for (BitmapForm form : BitmapForm.values()) {
+      for (int i = 0; i < count; i++) {
+        archive.addBitmap(id, form.name().toLowerCase() + i, form, 608, 392);
+        id++;
+      }
+    }
+    for (int i = 0; i < Math.max(1, count / 4); i++) {
+      archive.addMovie(i + 1, "movie" + i, 64, 16 * 1024);
+    }
+    return archive;
+  }
+
+  public SyntheticArchive addBitmap(int id, String name, BitmapForm form, int width, int height) {
+    byte[] data;
+    if (form == BitmapForm.RGB24) {
+      data = bitmap24(width, height, id);
+    } else {
+      int bytesPerRow = (width + 1) & 0x3fe;
+      byte[] pixels = pixels(bytesPerRow, height, id);
+      data = bitmap8(width, height, bytesPerRow, palette(id), pixels, form);
+    }
+    entries.add(new Entry("tBMP", id, name, data));
+    return this;
+  }
+
+  /** Adds a movie with {@code chunks} chunks of {@code chunkSize} bytes in its mdat atom. */
+  public SyntheticArchive addMovie(int id, String name, int chunks, int chunkSize) {
+    int stcoSize = 16 + 4 * chunks;
+    int stblSize = 8 + stcoSize;
+    int minfSize = 8 + stblSize;
+    int mdiaSize = 8 + minfSize;
+    int trakSize = 8 + mdiaSize;
+    int mvhdSize = 16;
+    int moovSize = 8 + mvhdSize + trakSize;
+    int mdatSize = 8 + chunks * chunkSize;
+    ByteBuffer movie = ByteBuffer.allocate(mdatSize + moovSize);
+    atom(movie, mdatSize, "mdat");
+    Random random = new Random(id);
+    byte[] chunk = new byte[chunkSize];
+    for (int i = 0; i < chunks; i++) {
+      random.nextBytes(chunk);
+      movie.put(chunk);
+    }
+    atom(movie, moovSize, "moov");
+    atom(movie, mvhdSize, "mvhd");
+    movie.putLong(0);
+    atom(movie, trakSize, "trak");
+    atom(movie, mdiaSize, "mdia");
+    atom(movie, minfSize, "minf");
+    atom(movie, stblSize, "stbl");
+    atom(movie, stcoSize, "stco");
+    movie.putInt(0); // version and flags
+    movie.putInt(chunks);
+    Entry entry = new Entry("tMOV", id, name, movie.array());
+    entry.chunkOffsets = movie.position();
+    entry.chunkCount = chunks;
+    for (int i = 0; i < chunks; i++) {
+      movie.putInt(8 + i * chunkSize);
+    }
+    entries.add(entry);
+    return this;
+  }
+
+  /** Adds a resource with the given raw data. */
+  public SyntheticArchive addResource(String type, int id, String name, byte[] data) {
+    entries.add(new Entry(type, id, name, data));
+    return this;
+  }
+
+  public void write(Path path) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    int position = HEADER_SIZE;
+    for (int i = 0; i < entries.size(); i++) {
+      Entry entry = entries.get(i);
+      entry.fileIndex = i + 1;
+      entry.offset = position;
+      byte[] data = entry.data;
+      if (entry.chunkCount > 0) {
+        // Chunk offsets in Riven movies are relative to the start of the archive.
+        data = data.clone();
+        ByteBuffer movie = ByteBuffer.wrap(data);
+        for (int j = 0; j < entry.chunkCount; j++) {
+          int at = entry.chunkOffsets + 4 * j;
+          movie.putInt(at, movie.getInt(at) + position);
+        }
+      }
+      body.write(data, 0, data.length);
+      position += data.length;
+    }
+
+    Map<String, List<Entry>> byType = new LinkedHashMap<>();
+    for (Entry entry : entries) {
+      byType.computeIfAbsent(entry.type, type -> new ArrayList<>()).add(entry);
+    }
+    ByteArrayOutputStream tables = new ByteArrayOutputStream();
+    ByteArrayOutputStream names = new ByteArrayOutputStream();
+    ByteBuffer typeTable = ByteBuffer.allocate(4 + 8 * byType.size());
+    typeTable.putShort((short) 0); // name list offset, filled in below
+    typeTable.putShort((short) byType.size());
+    int tableOffset = typeTable.capacity();
+    for (Map.Entry<String, List<Entry>> type : byType.entrySet()) {
+      List<Entry> resources = type.getValue();
+      ByteBuffer resourceTable = ByteBuffer.allocate(2 + 4 * resources.size());
+      resourceTable.putShort((short) resources.size());
+      List<Entry> named = new ArrayList<>();
+      for (Entry entry : resources) {
+        resourceTable.putShort((short) entry.id);
+        resourceTable.putShort((short) entry.fileIndex);
+        if (entry.name != null) {
+          named.add(entry);
+        }
+      }
+      ByteBuffer nameTable = ByteBuffer.allocate(2 + 4 * named.size());
+      nameTable.putShort((short) named.size());
+      for (Entry entry : named) {
+        nameTable.putShort((short) names.size());
+        nameTable.putShort((short) entry.fileIndex);
+        byte[] name = entry.name.getBytes(StandardCharsets.ISO_8859_1);
+        names.write(name, 0, name.length);
+        names.write(0);
+      }
+      typeTable.put(type.getKey().getBytes(StandardCharsets.ISO_8859_1));
+      typeTable.putShort((short) tableOffset);
+      typeTable.putShort((short) (tableOffset + resourceTable.capacity()));
+      tables.write(resourceTable.array(), 0, resourceTable.capacity());
+      tables.write(nameTable.array(), 0, nameTable.capacity());
+      tableOffset += resourceTable.capacity() + nameTable.capacity();
+    }
+    typeTable.putShort(0, (short) tableOffset);
+    int fileTableOffset = tableOffset + names.size();
+
+    ByteBuffer fileTable = ByteBuffer.allocate(4 + 10 * entries.size());
+    fileTable.putInt(entries.size());
+    for (Entry entry : entries) {
+      int size = entry.data.length;
+      fileTable.putInt(entry.offset);
+      fileTable.putShort((short) size);
+      fileTable.put((byte) (size >> 16));
+      fileTable.put((byte) ((size >> 24) & 7));
+      fileTable.putShort((short) 0);
+    }
+
+    int resourceDirOffset = position;
+    int fileSize = resourceDirOffset + fileTableOffset + fileTable.capacity();
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    header.put("MHWK".getBytes(StandardCharsets.ISO_8859_1));
+    header.putInt(fileSize - 8);
+    header.put("RSRC".getBytes(StandardCharsets.ISO_8859_1));
+    header.putShort((short) 0x100);
+    header.putShort((short) 0);
+    header.putInt(fileSize);
+    header.putInt(resourceDirOffset);
+    header.putShort((short) fileTableOffset);
+    header.putShort((short) fileTable.capacity());
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream(fileSize);
+    out.write(header.array(), 0, HEADER_SIZE);
+    body.writeTo(out);
+    out.write(typeTable.array(), 0, typeTable.capacity());
+    tables.writeTo(out);
+    names.writeTo(out);
+    out.write(fileTable.array(), 0, fileTable.capacity());
+    Files.write(path, out.toByteArray());
+  }
+
+  private static void atom(ByteBuffer buffer, int size, String type) {
+    buffer.putInt(size);
+    buffer.put(type.getBytes(StandardCharsets.ISO_8859_1));
+  }
+
+  private static byte[] bitmap24(int width, int height, long seed) {
+    Random random = new Random(seed);
+    ByteBuffer bb = ByteBuffer.allocate(8 + width * 4 * height);
+    bb.putShort((short) width);
+    bb.putShort((short) height);
+    bb.putShort((short) ((width * 3) & 0x3fe));
+    bb.putShort((short) 4); // 24 bpp, no compression
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        bb.put((byte) (x + random.nextInt(4)));
+        bb.put((byte) (y + random.nextInt(4)));
+        bb.put((byte) (x + y));
+      }
+      bb.position(bb.position() + width); // padding
+    }
+    return bb.array();
+  }
+
+  private static byte[] bitmap8(int width, int height, int bytesPerRow, byte[] palette,
+      byte[] pixels, BitmapForm form) {
+    boolean lz = form == BitmapForm.LZ || form == BitmapForm.LZ_RLE8;
+    boolean rle = form == BitmapForm.RLE8 || form == BitmapForm.LZ_RLE8;
+    // 8 bpp, with Riven (4) or LZ (1) primary compression and RLE8 (1) secondary compression.
+    int compression = (form == BitmapForm.RIVEN ? 0x0400 : lz ? 0x0100 : 0) | (rle ? 0x0010 : 0)
+        | 0x0002;
+    ByteBuffer header = ByteBuffer.allocate(12 + palette.length);
+    header.putShort((short) width);
+    header.putShort((short) height);
+    header.putShort((short) bytesPerRow);
+    header.putShort((short) compression);
+    header.putShort((short) 0); // color table size
+    header.put((byte) 24); // bits per color
+    header.put((byte) (palette.length / 3 - 1));
+    header.put(palette);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(header.array(), 0, header.capacity());
+    if (form == BitmapForm.RIVEN) {
+      out.write(new byte[4], 0, 4); // unknown
+      byte[] compressed = compressRiven(pixels);
+      out.write(compressed, 0, compressed.length);
+    } else {
+      byte[] data = rle ? compressRle8(pixels, width, bytesPerRow, height) : pixels;
+      if (lz) {
+        data = compressLz(data);
+      }
+      out.write(data, 0, data.length);
+    }
+    return out.toByteArray();
+  }
+
+  /** Compresses each row with RLE8, preceded by the number of bytes it takes up. */
+  static byte[] compressRle8(byte[] pixels, int width, int bytesPerRow, int height) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ByteArrayOutputStream row = new ByteArrayOutputStream();
+    for (int y = 0; y < height; y++) {
+      int start = y * bytesPerRow;
+      int end = start + width;
+      int x = start;
+      while (x < end) {
+        int run = 1;
+        while (run < 128 && x + run < end && pixels[x + run] == pixels[x]) {
+          run++;
+        }
+        if (run >= 3) {
+          row.write(0x80 | (run - 1));
+          row.write(pixels[x]);
+          x += run;
+          continue;
+        }
+        // Literals up to the next run of three.
+        int literals = 1;
+        while (literals < 128 && x + literals < end && !(x + literals + 2 < end
+            && pixels[x + literals] == pixels[x + literals + 1]
+            && pixels[x + literals] == pixels[x + literals + 2])) {
+          literals++;
+        }
+        row.write(literals - 1);
+        row.write(pixels, x, literals);
+        x += literals;
+      }
+      out.write(row.size() >> 8);
+      out.write(row.size());
+      out.writeBytes(row.toByteArray());
+      row.reset();
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Compresses data with a greedy Mohawk LZ encoder: a flag byte before every eight items, each a
+   * literal byte or a 16-bit reference of a 6-bit length and a 10-bit position in a 1 KB ring
+   * buffer of the output.
+   */
+  static byte[] compressLz(byte[] data) {
+    ByteArrayOutputStream items = new ByteArrayOutputStream();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int[] last = new int[1 << 16];
+    Arrays.fill(last, -1);
+    int flags = 0;
+    int count = 0;
+    int q = 0;
+    while (q < data.length) {
+      int bestLength = 0;
+      int candidate = -1;
+      if (q + 2 < data.length) {
+        int key = ((data[q] & 0xff) << 8 ^ (data[q + 1] & 0xff) << 4 ^ (data[q + 2] & 0xff))
+            & 0xffff;
+        candidate = last[key];
+        last[key] = q;
+      }
+      if (candidate >= 0 && q - candidate < 1024) {
+        while (bestLength < 66 && q + bestLength < data.length
+            && data[candidate + bestLength] == data[q + bestLength]) {
+          bestLength++;
+        }
+      }
+      if (bestLength >= 3) {
+        int reference = (bestLength - 3) << 10 | ((candidate - 66) & 0x3ff);
+        items.write(reference >> 8);
+        items.write(reference);
+        q += bestLength;
+      } else {
+        flags |= 1 << count;
+        items.write(data[q]);
+        q++;
+      }
+      if (++count == 8) {
+        out.write(flags);
+        out.writeBytes(items.toByteArray());
+        items.reset();
+        flags = 0;
+        count = 0;
+      }
+    }
+    if (count > 0) {
+      out.write(flags);
+      out.writeBytes(items.toByteArray());
+    }
+    ByteBuffer header = ByteBuffer.allocate(10);
+    header.putInt(data.length);
+    header.putInt(10 + out.size());
+    header.putShort((short) 1024);
+    ByteArrayOutputStream lz = new ByteArrayOutputStream();
+    lz.write(header.array(), 0, header.capacity());
+    lz.writeBytes(out.toByteArray());
+    return lz.toByteArray();
+  }
+
+  private static byte[] palette(long seed) {
+    byte[] palette = new byte[256 * 3];
+    new Random(seed).nextBytes(palette);
+    return palette;
+  }
+
+  /** Returns smooth gradients with some noise, which compresses roughly like the game's art. */
+  static byte[] pixels(int bytesPerRow, int height, long seed) {
+    Random random = new Random(seed);
+    byte[] pixels = new byte[bytesPerRow * height];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < bytesPerRow; x++) {
+        int value = (x / 24 + y / 12) * 5 + ((x / 64) ^ (y / 32));
+        if (random.nextInt(8) == 0) {
+          value += random.nextInt(5) - 2;
+        }
+        pixels[y * bytesPerRow + x] = (byte) value;
+      }
+    }
+    return pixels;
+  }
+
+  /**
+   * Compresses palette indices with a greedy Riven encoder. It only uses part of the command set
+   * (literal duplets, duplet repeats, 0xfc back-references and a few one-duplet subcommands), which
+   * is enough to exercise the hot paths of the decoder.
+   */
+  static byte[] compressRiven(byte[] pixels) {
+    RivenWriter out = new RivenWriter();
+    int n = pixels.length;
+    int q = 0;
+    while (q < n) {
+      int run = 0;
+      while (q >= 2 && run < 63 && q + 2 * run + 1 < n
+          && pixels[q + 2 * run] == pixels[q - 2] && pixels[q + 2 * run + 1] == pixels[q - 1]) {
+        run++;
+      }
+      if (run >= 2) {
+        out.command(0x40 | run);
+        q += 2 * run;
+        continue;
+      }
+
+      int bestLength = 0;
+      int bestDistance = 0;
+      for (int m = 2; m <= Math.min(q, 1023); m += m < 16 ? 1 : 1 + m / 16) {
+        int length = 0;
+        while (length < 33 && q + 2 * length + 1 < n
+            && pixels[q + 2 * length] == pixels[q - m + 2 * length]
+            && pixels[q + 2 * length + 1] == pixels[q - m + 2 * length + 1]) {
+          length++;
+        }
+        if (length > bestLength) {
+          bestLength = length;
+          bestDistance = m;
+        }
+      }
+      if (bestLength >= 2) {
+        // 0xfc nnnnnrmm mmmmmmmm with r = 1, so no trailing pixel.
+        out.subcommand(0xfc, ((bestLength - 2) << 3) | 0b100 | (bestDistance >> 8),
+            bestDistance & 0xff);
+        q += 2 * bestLength;
+      } else if (q >= 2 && pixels[q] == pixels[q - 2]) {
+        int delta = (pixels[q + 1] - pixels[q - 1]) & 0xff;
+        if (delta >= 1 && delta <= 15) {
+          out.subcommand(0x20 | delta);
+        } else if (delta >= 241) {
+          out.subcommand(0x30 | (256 - delta));
+        } else {
+          out.subcommand(0x10, pixels[q + 1] & 0xff);
+        }
+        q += 2;
+      } else {
+        out.literal(pixels[q], pixels[q + 1]);
+        q += 2;
+      }
+    }
+    out.command(0);
+    return out.toByteArray();
+  }
+
+  /** Groups literal duplets and subcommands into the commands that introduce them. */
+  private static class RivenWriter {
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private int literals;
+    private int subcommands;
+
+    void command(int command) {
+      flush();
+      out.write(command);
+    }
+
+    void literal(byte first, byte second) {
+      if (subcommands > 0 || literals == 63) {
+        flush();
+      }
+      pending.write(first);
+      pending.write(second);
+      literals++;
+    }
+
+    void subcommand(int... bytes) {
+      if (literals > 0 || subcommands == 63) {
+        flush();
+      }
+      for (int b : bytes) {
+        pending.write(b);
+      }
+      subcommands++;
+    }
+
+    byte[] toByteArray() {
+      return out.toByteArray();
+    }
+
+    private void flush() {
+      if (literals > 0) {
+        out.write(literals);
+      } else if (subcommands > 0) {
+        out.write(0xc0 | subcommands);
+      }
+      out.writeBytes(pending.toByteArray());
+      pending.reset();
+      literals = 0;
+      subcommands = 0;
+    }
+  }
+
+  private static class Entry {
+    final String type;
+    final int id;
+    final String name;
+    final byte[] data;
+    int fileIndex;
+    int offset;
+    int chunkOffsets;
+    int chunkCount;
+
+    Entry(String type, int id, String name, byte[] data) {
+      this.type = type;
+      this.id = id;
+      this.name = name;
+      this.data = data;
+    }
+  }
+
+  /** Usage: SyntheticArchive output.mhk [bitmaps per form]. */
+  public static void main(String[] args) throws IOException {
+    int count = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+    standard(count).write(Paths.get(args[0]));
+  }
+}
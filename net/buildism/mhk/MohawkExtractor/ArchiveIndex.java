@@ -0,0 +1,173 @@
+package net.buildism.mhk.MohawkExtractor;
+
+import static net.buildism.mhk.MohawkExtractor.MohawkArchive.ushort;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A sidecar index of an archive's resources, so that later opens do not have to parse the archive's
+ * tables. The file is memory-mapped and only the records of the types actually used are read.
+ *
+ * <pre>
+ *   "MHKI" version:int archiveSize:long archiveModified:long typeCount:int
+ *   typeCount x (type:4 bytes, resourceCount:int, recordsOffset:int)
+ *   per type, resourceCount x record:
+ *     id:u16 offset:int size:int width:u16 height:u16 bytesPerRow:u16 compression:u16
+ *     colorCount:u16 nameLength:u16 name:bytes
+ * </pre>
+ *
+ * The bitmap fields hold the tBMP header and are zero for other types. A name length of 0xffff
+ * means the resource has no name. The index is only used if the archive's size and modification
+ * time still match.
+ */
+class ArchiveIndex {
+
+  private static final int MAGIC = 0x4d484b49; // "MHKI"
+  private static final int VERSION = 2;
+  private static final int NO_NAME = 0xffff;
+
+  private final ByteBuffer bb;
+  private final Map<String, int[]> types = new LinkedHashMap<>();
+
+  private ArchiveIndex(ByteBuffer bb) {
+    this.bb = bb;
+    int typeCount = bb.getInt(24);
+    int position = 28;
+    for (int i = 0; i < typeCount; i++) {
+      byte[] type = new byte[4];
+      bb.get(position, type);
+      types.put(new String(type, StandardCharsets.ISO_8859_1),
+          new int[]{bb.getInt(position + 4), bb.getInt(position + 8)});
+      position += 12;
+    }
+  }
+
+  /**
+   * Maps the index at {@code indexPath}, or returns null if there is none or it was written for a
+   * different version of the archive.
+   */
+  static ArchiveIndex load(Path indexPath, long archiveSize, long archiveModified)
+      throws IOException {
+    try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+      if (channel.size() < 28) {
+        return null;
+      }
+      ByteBuffer bb = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (bb.getInt(0) != MAGIC || bb.getInt(4) != VERSION || bb.getLong(8) != archiveSize
+          || bb.getLong(16) != archiveModified) {
+        return null;
+      }
+      return new ArchiveIndex(bb);
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+  }
+
+  /** Writes an index of every resource in {@code archive}. */
+  static void write(Path indexPath, MohawkArchive archive, long archiveSize, long archiveModified)
+      throws IOException {
+    List<String> typeNames = new ArrayList<>(archive.getTypes());
+    List<byte[]> records = new ArrayList<>();
+    for (String type : typeNames) {
+      records.add(records(archive, type));
+    }
+    OutputFiles.writeAtomically(indexPath, temp -> {
+      try (OutputStream file = Files.newOutputStream(temp);
+           DataOutputStream out = new DataOutputStream(file)) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(archiveSize);
+        out.writeLong(archiveModified);
+        out.writeInt(typeNames.size());
+        int recordsOffset = 28 + 12 * typeNames.size();
+        for (int i = 0; i < typeNames.size(); i++) {
+          out.write(typeNames.get(i).getBytes(StandardCharsets.ISO_8859_1));
+          out.writeInt(archive.getResourceIds(typeNames.get(i)).size());
+          out.writeInt(recordsOffset);
+          recordsOffset += records.get(i).length;
+        }
+        for (byte[] record : records) {
+          out.write(record);
+        }
+      }
+    });
+  }
+
+  private static byte[] records(MohawkArchive archive, String type) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    for (int id : archive.getResourceIds(type)) {
+      MohawkArchive.Resource resource = archive.get(type, id);
+      out.writeShort(id);
+      out.writeInt(resource.getOffset());
+      out.writeInt(resource.getSize());
+      MohawkBitmap.Header header =
+          type.equals("tBMP") && resource.getSize() >= 8 ? resource.getBitmapHeader() : null;
+      out.writeShort(header == null ? 0 : header.getWidth());
+      out.writeShort(header == null ? 0 : header.getHeight());
+      out.writeShort(header == null ? 0 : header.getBytesPerRow());
+      out.writeShort(header == null ? 0 : header.getCompression());
+      out.writeShort(header == null ? 0 : header.getColorCount());
+      if (resource.getName() == null) {
+        out.writeShort(NO_NAME);
+      } else {
+        byte[] name = resource.getName().getBytes(StandardCharsets.ISO_8859_1);
+        out.writeShort(name.length);
+        out.write(name);
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  /** Returns the types in the index, each mapped to its resource count and records offset. */
+  Map<String, int[]> getTypes() {
+    return types;
+  }
+
+  /** Reads the records of {@code typeInfo} into resources of {@code archive}. */
+  void readResources(MohawkArchive archive, MohawkArchive.TypeInfo typeInfo) {
+    int[] type = types.get(typeInfo.type);
+    Map<Integer, MohawkArchive.Resource> resources = new HashMap<>();
+    Map<String, MohawkArchive.Resource> resourcesByName = new HashMap<>();
+    int position = type[1];
+    for (int i = 0; i < type[0]; i++) {
+      int id = ushort(bb.getShort(position));
+      MohawkArchive.FileInfo file =
+          new MohawkArchive.FileInfo(bb.getInt(position + 2), bb.getInt(position + 6));
+      MohawkArchive.Resource resource =
+          new MohawkArchive.Resource(archive, typeInfo.type, id, file);
+      if (typeInfo.type.equals("tBMP")) {
+        resource.header = new MohawkBitmap.Header(ushort(bb.getShort(position + 10)),
+            ushort(bb.getShort(position + 12)), ushort(bb.getShort(position + 14)),
+            ushort(bb.getShort(position + 16)), ushort(bb.getShort(position + 18)));
+      }
+      int nameLength = ushort(bb.getShort(position + 20));
+      position += 22;
+      if (nameLength != NO_NAME) {
+        byte[] name = new byte[nameLength];
+        bb.get(position, name);
+        position += nameLength;
+        resource.name = new String(name, StandardCharsets.ISO_8859_1);
+        resourcesByName.put(resource.name, resource);
+      }
+      resources.put(id, resource);
+    }
+    typeInfo.resources = resources;
+    typeInfo.resourcesByName = resourcesByName;
+  }
+}
@@ -0,0 +1,112 @@
+package net.buildism.mhk.MohawkExtractor;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Lists the resources of archives without decoding anything. Only the resource directory and the
+ * tBMP headers are read (or nothing but the sidecar index, with {@code --index}), and one record per
+ * resource is written to standard output as JSON Lines or CSV.
+ */
+class ArchiveScanner {
+
+  private static final String[] COLUMNS = new String[]{"archive", "type", "id", "name", "offset",
+      "size", "width", "height", "bytesPerRow", "bpp", "primaryCompression",
+      "secondaryCompression", "colors"};
+
+  private final boolean csv;
+  private final Writer out;
+
+  private ArchiveScanner(boolean csv, Writer out) {
+    this.csv = csv;
+    this.out = out;
+  }
+
+  static void scan(List<File> archives, Options options) throws IOException {
+    Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+    ArchiveScanner scanner = new ArchiveScanner(options.scanFormat.equals("csv"), out);
+    if (scanner.csv) {
+      out.write(String.join(",", COLUMNS) + "\n");
+    }
+    for (File archiveFile : archives) {
+      try (MohawkArchive archive = MohawkExtractor.openArchive(archiveFile, options)) {
+        for (String type : new TreeSet<>(archive.getTypes())) {
+          if (!options.filter.matchesType(type)) continue;
+          for (int id : new TreeSet<>(archive.getResourceIds(type))) {
+            MohawkArchive.Resource resource = archive.get(type, id);
+            if (options.filter.matches(resource)) {
+              scanner.write(archiveFile.getName(), resource);
+            }
+          }
+        }
+      }
+    }
+    out.flush();
+  }
+
+  private void write(String archive, MohawkArchive.Resource resource) throws IOException {
+    Object[] values = new Object[COLUMNS.length];
+    values[0] = archive;
+    values[1] = resource.getType();
+    values[2] = resource.getId();
+    values[3] = resource.getName();
+    values[4] = resource.getOffset();
+    values[5] = resource.getSize();
+    if (resource.getType().equals("tBMP") && resource.getSize() >= 8) {
+      MohawkBitmap.Header header = resource.getBitmapHeader();
+      values[6] = header.getWidth();
+      values[7] = header.getHeight();
+      values[8] = header.getBytesPerRow();
+      values[9] = header.getBitsPerPixel();
+      values[10] = header.getPrimaryCompression();
+      values[11] = header.getSecondaryCompression();
+      values[12] = header.getColorCount();
+    }
+
+    StringBuilder line = new StringBuilder(csv ? "" : "{");
+    boolean first = true;
+    for (int i = 0; i < values.length; i++) {
+      if (csv) {
+        if (i > 0) {
+          line.append(',');
+        }
+        if (values[i] instanceof String) {
+          line.append('"').append(((String) values[i]).replace("\"", "\"\"")).append('"');
+        } else if (values[i] != null) {
+          line.append(values[i]);
+        }
+      } else if (values[i] != null) {
+        // Absent fields are left out of the JSON object rather than written as null.
+        line.append(first ? "" : ",").append('"').append(COLUMNS[i]).append("\":");
+        if (values[i] instanceof String) {
+          appendJsonString(line, (String) values[i]);
+        } else {
+          line.append(values[i]);
+        }
+        first = false;
+      }
+    }
+    out.write(line.append(csv ? "\n" : "}\n").toString());
+  }
+
+  private static void appendJsonString(StringBuilder line, String value) {
+    line.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        line.append('\\').append(c);
+      } else if (c < 0x20) {
+        line.append(String.format("\\u%04x", (int) c));
+      } else {
+        line.append(c);
+      }
+    }
+    line.append('"');
+  }
+}
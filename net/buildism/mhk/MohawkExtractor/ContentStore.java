@@ -0,0 +1,123 @@
+package net.buildism.mhk.MohawkExtractor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A content-addressed store for {@code --dedup}. Each distinct resource is decoded and written
+ * once, to {@code objects/<sha-256>.<extension>} in the output directory, keyed by the hash of its
+ * raw archive bytes. Where the export depends on more than those bytes, that goes into the key
+ * too: a bitmap's PNG depends on {@code --indexed}, {@code --png-level} and {@code --png-filter},
+ * giving e.g. {@code objects/<sha-256>-rgb-6-adaptive.png}, and a movie's chunk offsets are
+ * rebased against where it sits in its archive, giving {@code objects/<sha-256>-<offset>.mov}.
+ * Objects left by earlier runs are reused as they are, so this keeps one written with other
+ * settings from standing in for the current ones. With {@code --dedup link} the per-archive output
+ * files are hard links to these objects; with {@code --dedup map} no per-archive files are written
+ * and the manifests, whose output column then points into {@code objects}, serve as the mapping.
+ */
+class ContentStore {
+
+  interface Producer {
+    void produce(File object) throws IOException;
+  }
+
+  private final File dir;
+  private final boolean link;
+  private final String pngSettings;
+  private final Map<File, CompletableFuture<Void>> objects = new ConcurrentHashMap<>();
+
+  ContentStore(File outputDir, Options options) {
+    this.dir = new File(outputDir, "objects");
+    this.link = options.dedup.equals("link");
+    this.pngSettings = (options.indexed ? "indexed" : "rgb") + "-" + options.pngLevel + "-"
+        + options.pngFilter.name().toLowerCase();
+  }
+
+  /** Returns true if per-archive outputs are hard links, false if only the objects are written. */
+  boolean isLinking() {
+    return link;
+  }
+
+  /** Returns the object {@code resource}, whose raw bytes hash to {@code hash}, is exported to. */
+  File objectFile(MohawkArchive.Resource resource, String hash, File outputFile) {
+    String name = outputFile.getName();
+    String key = hash;
+    if (resource.getType().equals("tBMP")) {
+      key += "-" + pngSettings;
+    } else if (resource.getType().equals("tMOV")) {
+      key += "-" + resource.getOffset();
+    }
+    return new File(dir, key + name.substring(name.lastIndexOf('.')));
+  }
+
+  /**
+   * Claims {@code object}. Returns null if the caller is the first to ask and must now write it and
+   * then call {@link #produced} or {@link #failed}; otherwise returns a future that completes once
+   * the object exists.
+   */
+  CompletableFuture<Void> claim(File object) {
+    CompletableFuture<Void> claim = new CompletableFuture<>();
+    CompletableFuture<Void> existing = objects.putIfAbsent(object, claim);
+    if (existing != null) {
+      return existing;
+    }
+    if (object.isFile()) {
+      // Written by an earlier run.
+      claim.complete(null);
+      return claim;
+    }
+    return null;
+  }
+
+  void produced(File object) {
+    objects.get(object).complete(null);
+  }
+
+  void failed(File object, Throwable cause) {
+    objects.get(object).completeExceptionally(cause);
+  }
+
+  /**
+   * Makes sure {@code object} exists, producing it if no other thread is already doing so and
+   * waiting for that thread otherwise. Returns true if this call produced it.
+   */
+  boolean ensure(File object, Producer producer) throws IOException {
+    CompletableFuture<Void> pending = claim(object);
+    if (pending == null) {
+      try {
+        producer.produce(object);
+      } catch (IOException | RuntimeException | Error e) {
+        failed(object, e);
+        throw e;
+      }
+      produced(object);
+      return true;
+    }
+    try {
+      pending.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw new IOException("producing " + object + " failed", e.getCause());
+      }
+      throw e;
+    }
+    return false;
+  }
+
+  /** Replaces {@code outputFile} with a hard link to {@code object}, or a copy if links fail. */
+  void link(File object, File outputFile) throws IOException {
+    OutputFiles.writeAtomically(outputFile.toPath(), temp -> {
+      try {
+        Files.createLink(temp, object.toPath());
+      } catch (UnsupportedOperationException | IOException e) {
+        Files.copy(object.toPath(), temp, StandardCopyOption.REPLACE_EXISTING);
+      }
+    });
+  }
+}
@@ -0,0 +1,196 @@
+package net.buildism.mhk.MohawkExtractor;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records what was extracted from one archive, so that re-runs can skip work. The manifest lives
+ * in the archive's output directory and holds the archive's size and modification time, the
+ * options that shape the output, and for each resource its file table offset, size, content hash
+ * and output file:
+ *
+ * <pre>
+ *   archive &lt;size&gt; &lt;mtime&gt; &lt;complete&gt; &lt;settings&gt;
+ *   &lt;type&gt; &lt;id&gt; &lt;offset&gt; &lt;size&gt; &lt;sha-256&gt; &lt;output&gt;
+ * </pre>
+ *
+ * An archive whose size and modification time match a complete manifest is skipped without being
+ * opened. Otherwise each resource is re-extracted only if its entry changed or its output is gone.
+ * A manifest written with other settings, e.g. without {@code --indexed} or {@code --all-types},
+ * says nothing about this run's output, and everything is extracted again.
+ */
+class ExtractionManifest {
+
+  static final String FILE_NAME = ".manifest";
+
+  private final File outputDir;
+  private final long archiveSize;
+  private final long archiveModified;
+  private final String settings;
+  private final boolean unchanged;
+  private final Map<String, Entry> previous;
+  private final Map<String, Entry> current = new ConcurrentHashMap<>();
+
+  private ExtractionManifest(File outputDir, long archiveSize, long archiveModified,
+      String settings, boolean unchanged, Map<String, Entry> previous) {
+    this.outputDir = outputDir;
+    this.archiveSize = archiveSize;
+    this.archiveModified = archiveModified;
+    this.settings = settings;
+    this.unchanged = unchanged;
+    this.previous = previous;
+  }
+
+  /**
+   * Reads the manifest of {@code archiveFile} from {@code outputDir}, if there is one and it was
+   * written with the same output settings as {@code options}. The manifest is only a cache, so one
+   * that cannot be parsed (empty, truncated or edited by hand) is ignored like a missing one.
+   */
+  static ExtractionManifest load(File outputDir, File archiveFile, Options options)
+      throws IOException {
+    long size = Files.size(archiveFile.toPath());
+    long modified = Files.getLastModifiedTime(archiveFile.toPath()).toMillis();
+    String settings = settings(options);
+    Map<String, Entry> previous = new TreeMap<>();
+    boolean unchanged = false;
+    try (BufferedReader in = Files.newBufferedReader(
+        new File(outputDir, FILE_NAME).toPath(), StandardCharsets.UTF_8)) {
+      String first = in.readLine();
+      String[] header = first == null ? new String[0] : first.split(" ");
+      if (header.length < 5 || !header[4].equals(settings)) {
+        return new ExtractionManifest(outputDir, size, modified, settings, false, previous);
+      }
+      unchanged = Long.parseLong(header[1]) == size && Long.parseLong(header[2]) == modified
+          && Boolean.parseBoolean(header[3]);
+      String line;
+      while ((line = in.readLine()) != null) {
+        String[] fields = line.split(" ", 6);
+        Entry entry = new Entry(Integer.parseInt(fields[2]), Integer.parseInt(fields[3]),
+            fields[4], fields[5]);
+        previous.put(fields[0] + " " + fields[1], entry);
+      }
+    } catch (NoSuchFileException e) {
+      // First run for this archive.
+    } catch (NumberFormatException | IndexOutOfBoundsException | CharacterCodingException e) {
+      System.out.println(new File(outputDir, FILE_NAME) + " is damaged, extracting again: " + e);
+      return new ExtractionManifest(outputDir, size, modified, settings, false, new TreeMap<>());
+    }
+    return new ExtractionManifest(outputDir, size, modified, settings, unchanged, previous);
+  }
+
+  /**
+   * Returns the options that change what is written for an archive, as one token: which types are
+   * extracted, the dedup mode and the PNG format.
+   */
+  private static String settings(Options options) {
+    return "types=" + (options.allTypes ? "all" : "tBMP,tMOV")
+        + ";dedup=" + (options.dedup != null ? options.dedup : "none")
+        + ";indexed=" + options.indexed
+        + ";png=" + options.pngLevel + "," + options.pngFilter.name().toLowerCase();
+  }
+
+  /** Returns true if the archive has not changed since the last complete run. */
+  boolean isArchiveUnchanged() {
+    return unchanged;
+  }
+
+  /**
+   * Returns true if {@code resource} was extracted to {@code outputFile} by an earlier run and has
+   * not changed since, in which case its entry is carried over.
+   */
+  boolean isCurrent(MohawkArchive.Resource resource, String hash, File outputFile) {
+    String key = key(resource);
+    Entry entry = previous.get(key);
+    if (entry == null || entry.offset != resource.getOffset() || entry.size != resource.getSize()
+        || !entry.hash.equals(hash) || !entry.output.equals(relativePath(outputFile))
+        || !outputFile.isFile()) {
+      return false;
+    }
+    current.put(key, entry);
+    return true;
+  }
+
+  /** Records that {@code resource} has been extracted to {@code outputFile}. */
+  void record(MohawkArchive.Resource resource, String hash, File outputFile) {
+    current.put(key(resource),
+        new Entry(resource.getOffset(), resource.getSize(), hash, relativePath(outputFile)));
+  }
+
+  /**
+   * Writes the manifest with the entries recorded in this run. {@code complete} should only be set
+   * once every resource of the archive has been extracted (see
+   * {@link MohawkExtractor#isComplete}); otherwise entries of resources this run did not get to are
+   * kept from the previous manifest.
+   */
+  void save(boolean complete) throws IOException {
+    Path path = new File(outputDir, FILE_NAME).toPath();
+    Map<String, Entry> entries = new TreeMap<>(current);
+    if (!complete) {
+      for (Map.Entry<String, Entry> entry : previous.entrySet()) {
+        entries.putIfAbsent(entry.getKey(), entry.getValue());
+      }
+    }
+    OutputFiles.writeAtomically(path, temp -> {
+      try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+        out.write("archive " + archiveSize + " " + archiveModified + " " + complete + " "
+            + settings + "\n");
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+          Entry value = entry.getValue();
+          out.write(entry.getKey() + " " + value.offset + " " + value.size + " " + value.hash + " "
+              + value.output + "\n");
+        }
+      }
+    });
+  }
+
+  /** Returns the hex SHA-256 of the remaining bytes of {@code data}. */
+  static String hash(ByteBuffer data) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    digest.update(data);
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest()) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+
+  private static String key(MohawkArchive.Resource resource) {
+    return resource.getType() + " " + resource.getId();
+  }
+
+  private String relativePath(File outputFile) {
+    return outputDir.toPath().relativize(outputFile.toPath()).toString().replace('\\', '/');
+  }
+
+  private static class Entry {
+    final int offset;
+    final int size;
+    final String hash;
+    final String output;
+
+    Entry(int offset, int size, String hash, String output) {
+      this.offset = offset;
+      this.size = size;
+      this.hash = hash;
+      this.output = output;
+    }
+  }
+}
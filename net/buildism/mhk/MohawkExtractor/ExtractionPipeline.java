@@ -0,0 +1,366 @@
+package net.buildism.mhk.MohawkExtractor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Extracts archives through a staged pipeline:
+ *
+ * <pre>
+ *   slice -> decompress -> convert -> encode -> write
+ * </pre>
+ *
+ * Stages are connected by bounded queues, so a slow stage blocks the ones feeding it instead of
+ * letting decoded bitmaps pile up in memory. Decompression, colour conversion and PNG encoding run
+ * on a fixed pool; slicing resources out of the archive and writing output files block on I/O
+ * and run on virtual threads where the JVM has them, so slow disks never hold up the decoders.
+ * With {@code --max-inflight-mb}, the slice stage also waits for room in the {@link MemoryBudget}
+ * before copying a resource in, and the writer hands it back once the output is written, which
+ * bounds memory by size rather than by item count.
+ */
+class ExtractionPipeline {
+
+  private static final Item END = new Item(null, null, null);
+
+  private final Options options;
+  private final PngEncoder pngEncoder;
+  private final Metrics metrics;
+  private final ContentStore store;
+  private final TextureStore textures;
+  private final MemoryBudget budget;
+  private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+  private ExtractionPipeline(Options options, PngEncoder pngEncoder, Metrics metrics,
+      ContentStore store, TextureStore textures) {
+    this.options = options;
+    this.pngEncoder = pngEncoder;
+    this.metrics = metrics;
+    this.store = store;
+    this.textures = textures;
+    this.budget = new MemoryBudget(options);
+  }
+
+  static void extract(List<File> archives, Options options, PngEncoder pngEncoder,
+      Metrics metrics, ContentStore store, TextureStore textures) throws Exception {
+    new ExtractionPipeline(options, pngEncoder, metrics, store, textures).run(archives);
+  }
+
+  private void run(List<File> archives) throws Exception {
+    int cpuThreads = options.threads;
+    int convertThreads = Math.max(1, cpuThreads / 4);
+    ExecutorService cpu = Executors.newFixedThreadPool(2 * cpuThreads + convertThreads);
+    ExecutorService io = ioExecutor();
+    List<MohawkArchive> opened = new ArrayList<>();
+    List<ExtractionManifest> manifests = new ArrayList<>();
+    boolean complete = false;
+    try {
+      BlockingQueue<Item> sliceQueue = queue();
+      BlockingQueue<Item> decompressQueue = queue();
+      BlockingQueue<Item> convertQueue = queue();
+      BlockingQueue<Item> encodeQueue = queue();
+      BlockingQueue<Item> writeQueue = queue();
+      new Stage(io, options.ioThreads, sliceQueue, decompressQueue) {
+        @Override
+        boolean process(Item item) {
+          if (!MohawkExtractor.isSupported(item.resource, metrics)) {
+            return false;
+          }
+          // Hash and copy the resource here, so page faults on the mapping happen on an I/O thread.
+          Metrics.Timer timer = metrics.time(Metrics.Stage.HASH, item.resource);
+          item.hash = ExtractionManifest.hash(item.resource.getData());
+          timer.stop();
+          File recorded = item.outputFile;
+          if (store != null) {
+            item.object = store.objectFile(item.resource, item.hash, item.outputFile);
+            recorded = store.isLinking() ? item.outputFile : item.object;
+          }
+          if (item.manifest.isCurrent(item.resource, item.hash, recorded)) {
+            return false;
+          }
+          timer = metrics.time(Metrics.Stage.ADMIT, item.resource);
+          if (store != null) {
+            // Only the first of a set of identical resources is decoded; the rest skip to the
+            // writer and wait there for its object.
+            item.pending = store.claim(item.object);
+            item.claimed = item.pending == null;
+          }
+          if (item.pending == null) {
+            item.charge = budget.acquire(item.resource);
+          }
+          if (item.pending == null && item.resource.getType().equals("tBMP")) {
+            ByteBuffer data = item.resource.getData();
+            item.data = ByteBuffer.allocate(data.remaining()).put(data).flip();
+          }
+          timer.stop();
+          metrics.countResource(item.resource);
+          return true;
+        }
+      }.start();
+      new Stage(cpu, cpuThreads, decompressQueue, convertQueue) {
+        @Override
+        boolean process(Item item) {
+          if (item.data != null) {
+            Metrics.Timer timer = metrics.time(Metrics.Stage.DECODE, item.resource);
+            item.bitmap = MohawkBitmap.read(item.data);
+            item.data = null;
+            if (textures != null) {
+              // Kept as decoded, before conversion, until the writer puts it in the texture store.
+              item.texture = item.bitmap;
+            }
+            timer.stop();
+          }
+          return true;
+        }
+      }.start();
+      new Stage(cpu, convertThreads, convertQueue, encodeQueue) {
+        @Override
+        boolean process(Item item) {
+          if (item.bitmap != null && !options.indexed) {
+            Metrics.Timer timer = metrics.time(Metrics.Stage.CONVERT, item.resource);
+            item.bitmap = item.bitmap.toRgb();
+            timer.stop();
+          }
+          return true;
+        }
+      }.start();
+      new Stage(cpu, cpuThreads, encodeQueue, writeQueue) {
+        @Override
+        boolean process(Item item) throws IOException {
+          if (item.bitmap != null) {
+            Metrics.Timer timer = metrics.time(Metrics.Stage.ENCODE, item.resource);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            pngEncoder.write(item.bitmap, out);
+            item.bitmap = null;
+            item.output = out.toByteArray();
+            timer.stop();
+          }
+          return true;
+        }
+      }.start();
+      Stage writer = new Stage(io, options.ioThreads, writeQueue, null) {
+        @Override
+        boolean process(Item item) throws IOException {
+          if (item.pending != null) {
+            // Waiting here could block the writer that is to produce the object, so finish the
+            // duplicate from whichever thread completes it instead.
+            metrics.count("duplicates");
+            item.pending.whenComplete((ignored, cause) -> {
+              try {
+                if (cause != null) {
+                  throw new IOException("producing " + item.object + " failed", cause);
+                }
+                finish(item);
+              } catch (Exception | Error e) {
+                System.out.println(item.resource.getType() + " " + item.resource.getId() + " " + e);
+                failure.compareAndSet(null, e);
+              }
+            });
+            return true;
+          }
+          File file = item.object != null ? item.object : item.outputFile;
+          Metrics.Timer timer = metrics.time(Metrics.Stage.WRITE, item.resource);
+          if (item.output != null) {
+            OutputFiles.writeAtomically(file.toPath(), item.output);
+            metrics.countOutput(item.output.length);
+          } else {
+            // Other types are exported straight from the archive file by their handlers instead
+            // of being staged in memory.
+            OutputFiles.writeAtomically(
+                file.toPath(), temp -> ResourceHandlers.write(item.resource, temp));
+            metrics.countOutput(file.length());
+          }
+          timer.stop();
+          if (item.texture != null) {
+            textures.accept(item.resource, item.texture);
+            item.texture = null;
+          }
+          if (item.claimed) {
+            store.produced(item.object);
+          }
+          release(item);
+          finish(item);
+          return true;
+        }
+      };
+      writer.start();
+
+      for (File archiveFile : archives) {
+        File outputDir = MohawkExtractor.outputDir(archiveFile, options);
+        ExtractionManifest manifest = ExtractionManifest.load(outputDir, archiveFile, options);
+        if (manifest.isArchiveUnchanged()) continue;
+        manifests.add(manifest);
+        MohawkArchive archive = MohawkExtractor.openArchive(archiveFile, options);
+        opened.add(archive);
+        for (MohawkArchive.Resource resource : MohawkExtractor.selectResources(archive, options)) {
+          File outputFile = MohawkExtractor.outputFile(outputDir, resource);
+          sliceQueue.put(new Item(resource, outputFile, manifest));
+        }
+      }
+      sliceQueue.put(END);
+      writer.awaitEnd();
+      complete = failure.get() == null && MohawkExtractor.isComplete(options);
+    } finally {
+      for (ExtractionManifest manifest : manifests) {
+        manifest.save(complete);
+      }
+      cpu.shutdownNow();
+      io.shutdownNow();
+      for (MohawkArchive archive : opened) {
+        archive.close();
+      }
+    }
+    Throwable cause = failure.get();
+    if (cause instanceof Error) {
+      throw (Error) cause;
+    } else if (cause != null) {
+      throw (Exception) cause;
+    }
+  }
+
+  /** Links a deduplicated item to its object if need be, and records it in its manifest. */
+  private void finish(Item item) throws IOException {
+    if (store == null || store.isLinking()) {
+      if (store != null) {
+        store.link(item.object, item.outputFile);
+      }
+      item.manifest.record(item.resource, item.hash, item.outputFile);
+    } else {
+      item.manifest.record(item.resource, item.hash, item.object);
+    }
+  }
+
+  /**
+   * Hands an item's share of the memory budget back. Only the first call releases anything, so an
+   * item that fails after its output was written is not released twice.
+   */
+  private void release(Item item) {
+    budget.release(item.charge);
+    item.charge = 0;
+  }
+
+  private BlockingQueue<Item> queue() {
+    return new ArrayBlockingQueue<>(options.queueSize);
+  }
+
+  /** Returns an executor that starts a virtual thread per task, or a cached pool before Java 21. */
+  private static ExecutorService ioExecutor() {
+    try {
+      return (ExecutorService)
+          Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newCachedThreadPool();
+    }
+  }
+
+  /** One resource on its way through the pipeline. Each stage fills in the next field. */
+  private static class Item {
+    final MohawkArchive.Resource resource;
+    final File outputFile;
+    final ExtractionManifest manifest;
+    String hash;
+    File object;
+    CompletableFuture<Void> pending;
+    boolean claimed;
+    long charge;
+    ByteBuffer data;
+    MohawkBitmap bitmap;
+    MohawkBitmap texture;
+    byte[] output;
+
+    Item(MohawkArchive.Resource resource, File outputFile, ExtractionManifest manifest) {
+      this.resource = resource;
+      this.outputFile = outputFile;
+      this.manifest = manifest;
+    }
+  }
+
+  /**
+   * A set of workers taking items from one queue and passing them on to the next. The {@link #END}
+   * marker is put back for the other workers of the stage, and the last worker to see it forwards
+   * it to the next stage.
+   */
+  private abstract class Stage {
+    private final ExecutorService executor;
+    private final int workers;
+    private final BlockingQueue<Item> in;
+    private final BlockingQueue<Item> out;
+    private final AtomicInteger running;
+    private final CountDownLatch ended = new CountDownLatch(1);
+
+    Stage(ExecutorService executor, int workers, BlockingQueue<Item> in, BlockingQueue<Item> out) {
+      this.executor = executor;
+      this.workers = workers;
+      this.in = in;
+      this.out = out;
+      this.running = new AtomicInteger(workers);
+    }
+
+    /** Processes an item, returning false if it needs no further work and should be dropped. */
+    abstract boolean process(Item item) throws Exception;
+
+    void start() {
+      for (int i = 0; i < workers; i++) {
+        executor.execute(this::work);
+      }
+    }
+
+    void awaitEnd() throws InterruptedException {
+      ended.await();
+    }
+
+    private void work() {
+      try {
+        while (true) {
+          Item item = in.take();
+          if (item == END) {
+            in.put(END);
+            break;
+          }
+          boolean forward;
+          try {
+            forward = process(item);
+          } catch (Exception | Error e) {
+            // Errors such as OutOfMemoryError fail the run like exceptions do, rather than killing
+            // the worker and leaving the stages after it waiting for END forever.
+            System.out.println(item.resource.getType() + " " + item.resource.getId() + " " + e);
+            failure.compareAndSet(null, e);
+            if (item.claimed) {
+              store.failed(item.object, e);
+            }
+            release(item);
+            continue;
+          }
+          if (forward && out != null) {
+            out.put(item);
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        if (running.decrementAndGet() == 0) {
+          try {
+            if (out != null) {
+              out.put(END);
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } finally {
+            ended.countDown();
+          }
+        }
+      }
+    }
+  }
+}
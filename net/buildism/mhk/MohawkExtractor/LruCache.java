@@ -0,0 +1,87 @@
+package net.buildism.mhk.MohawkExtractor;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.ToLongFunction;
+
+/**
+ * A least-recently-used cache bounded by the total weight of its values rather than their number.
+ * Loads are single-flight: threads asking for a key that is already being loaded wait for that load
+ * instead of starting their own.
+ */
+class LruCache<K, V> {
+
+  interface Loader<K, V> {
+    V load(K key) throws Exception;
+  }
+
+  private final long maxWeight;
+  private final ToLongFunction<V> weigher;
+  private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private final Map<K, CompletableFuture<V>> loading = new ConcurrentHashMap<>();
+  private long weight;
+
+  LruCache(long maxWeight, ToLongFunction<V> weigher) {
+    this.maxWeight = maxWeight;
+    this.weigher = weigher;
+  }
+
+  /** Returns the cached value for {@code key}, loading it with {@code loader} if necessary. */
+  V get(K key, Loader<K, V> loader) throws Exception {
+    synchronized (this) {
+      V value = entries.get(key);
+      if (value != null) {
+        return value;
+      }
+    }
+    CompletableFuture<V> load = new CompletableFuture<>();
+    CompletableFuture<V> existing = loading.putIfAbsent(key, load);
+    if (existing != null) {
+      try {
+        return existing.get();
+      } catch (ExecutionException e) {
+        throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+      }
+    }
+    try {
+      V value;
+      synchronized (this) {
+        // Another thread may have finished loading it since the first look.
+        value = entries.get(key);
+      }
+      if (value == null) {
+        value = loader.load(key);
+        put(key, value);
+      }
+      load.complete(value);
+      return value;
+    } catch (Exception | Error e) {
+      load.completeExceptionally(e);
+      throw e;
+    } finally {
+      loading.remove(key);
+    }
+  }
+
+  private synchronized void put(K key, V value) {
+    long valueWeight = weigher.applyAsLong(value);
+    if (valueWeight > maxWeight) {
+      // Would evict everything else and still not fit.
+      return;
+    }
+    V old = entries.put(key, value);
+    if (old != null) {
+      weight -= weigher.applyAsLong(old);
+    }
+    weight += valueWeight;
+    Iterator<V> eldest = entries.values().iterator();
+    while (weight > maxWeight) {
+      weight -= weigher.applyAsLong(eldest.next());
+      eldest.remove();
+    }
+  }
+}
@@ -0,0 +1,233 @@
+package net.buildism.mhk.MohawkExtractor;
+
+import java.util.Arrays;
+
+/**
+ * Decompresses the pixel data of tBMP resources using the generic Mohawk LZ primary compression,
+ * the RLE8 secondary compression, or both. See
+ * http://insidethelink.ortiche.net/wiki/index.php/Mohawk_Bitmaps.
+ *
+ * <p>When both are used, the LZ stream decompresses to the RLE8 stream. Both run in a single pass
+ * over a small window: the LZ decoder fills a few kilobytes after the 1 KB of history its
+ * back-references can reach, the RLE8 expansion drains them straight into the final index buffer,
+ * and the window slides. No intermediate buffer the size of the image is needed, and both loops
+ * work on local variables instead of calling a per-byte method.
+ */
+class LzRleDecoder {
+
+  // LZ back-references are 16 bits: a 6-bit length and a 10-bit position in a 1 KB ring buffer.
+  private static final int LENGTH_BITS = 6;
+  private static final int POSITION_BITS = 16 - LENGTH_BITS;
+  private static final int MIN_LENGTH = 3;
+  private static final int MAX_LENGTH = (1 << LENGTH_BITS) + MIN_LENGTH - 1;
+  private static final int HISTORY = 1 << POSITION_BITS;
+  private static final int POSITION_MASK = HISTORY - 1;
+  private static final int BLOCK = 8192;
+  // An RLE8 run takes at most a code byte and 128 literals.
+  private static final int MAX_RUN = 129;
+
+  private final byte[] data;
+  private int position;
+  private final int end;
+  private final boolean lz;
+
+  /** The decompressed stream: the input itself without LZ, otherwise the LZ window. */
+  private final byte[] buffer;
+  private int read;
+  private int limit;
+  /** The stream offset of buffer[0], so that the stream position is {@code read + shift}. */
+  private int shift;
+
+  // LZ state that carries over between blocks.
+  private int flags;
+  private int uncompressedLeft;
+
+  private LzRleDecoder(byte[] data, int offset, int length, boolean lz) {
+    this.data = data;
+    this.position = offset;
+    this.end = offset + length;
+    this.lz = lz;
+    if (lz) {
+      uncompressedLeft = readInt();
+      readInt(); // compressed size
+      int historySize = readByte() << 8 | readByte();
+      if (historySize != HISTORY) {
+        throw new IllegalArgumentException("unsupported LZ dictionary size: " + historySize);
+      }
+      // References before the start of the stream read the zeros the ring buffer starts with.
+      buffer = new byte[HISTORY + BLOCK + MAX_LENGTH];
+      read = HISTORY;
+      limit = HISTORY;
+      shift = -HISTORY;
+    } else {
+      buffer = data;
+      read = position;
+      limit = end;
+      shift = -position;
+    }
+  }
+
+  /**
+   * Decompresses {@code length} bytes of {@code data} from {@code offset} into {@code height} rows
+   * of {@code bytesPerRow} palette indices, of which the first {@code width} are filled by RLE8.
+   */
+  static byte[] decompress(byte[] data, int offset, int length, boolean lz, boolean rle,
+      int width, int bytesPerRow, int height) {
+    LzRleDecoder in = new LzRleDecoder(data, offset, length, lz);
+    byte[] indices = new byte[bytesPerRow * height];
+    if (rle) {
+      in.expandRle8(indices, Math.min(width, bytesPerRow), bytesPerRow, height);
+    } else {
+      in.read(indices, 0, indices.length);
+    }
+    return indices;
+  }
+
+  /**
+   * Each row starts with the number of bytes that follow for it, then runs: a byte n below 0x80
+   * followed by n + 1 literal indices, or a byte 0x80 + n followed by one index repeated n + 1
+   * times.
+   */
+  private void expandRle8(byte[] indices, int width, int bytesPerRow, int height) {
+    for (int y = 0; y < height; y++) {
+      int rowBytes = next() << 8 | next();
+      int rowEnd = read + shift + rowBytes;
+      int out = y * bytesPerRow;
+      int rowLeft = width;
+      while (rowLeft > 0) {
+        int run;
+        if (limit - read > MAX_RUN) {
+          // The whole run is in the buffer, so it needs no checks.
+          byte[] buffer = this.buffer;
+          int code = buffer[read++];
+          run = Math.min((code & 0x7f) + 1, rowLeft);
+          if (code < 0) {
+            Arrays.fill(indices, out, out + run, buffer[read++]);
+          } else {
+            System.arraycopy(buffer, read, indices, out, run);
+            read += run;
+          }
+        } else {
+          int code = next();
+          run = Math.min((code & 0x7f) + 1, rowLeft);
+          if ((code & 0x80) != 0) {
+            Arrays.fill(indices, out, out + run, (byte) next());
+          } else {
+            read(indices, out, run);
+          }
+        }
+        out += run;
+        rowLeft -= run;
+      }
+      // Rows may be padded past the runs that fill them.
+      skip(rowEnd - (read + shift));
+    }
+  }
+
+  private int next() {
+    if (read == limit) {
+      fill();
+    }
+    return buffer[read++] & 0xff;
+  }
+
+  private void read(byte[] out, int offset, int length) {
+    while (length > 0) {
+      if (read == limit) {
+        fill();
+      }
+      int n = Math.min(length, limit - read);
+      System.arraycopy(buffer, read, out, offset, n);
+      read += n;
+      offset += n;
+      length -= n;
+    }
+  }
+
+  private void skip(int length) {
+    while (length > 0) {
+      if (read == limit) {
+        fill();
+      }
+      int n = Math.min(length, limit - read);
+      read += n;
+      length -= n;
+    }
+  }
+
+  /**
+   * Slides the window so that the last {@link #HISTORY} bytes come first, and decompresses about
+   * {@link #BLOCK} more bytes after them.
+   */
+  private void fill() {
+    if (!lz) {
+      throw new IllegalArgumentException("compressed bitmap data ends early");
+    }
+    if (uncompressedLeft <= 0) {
+      throw new IllegalArgumentException("LZ data ends early");
+    }
+    byte[] buffer = this.buffer;
+    byte[] data = this.data;
+    if (limit > HISTORY) {
+      System.arraycopy(buffer, limit - HISTORY, buffer, 0, HISTORY);
+      shift += limit - HISTORY;
+      read = HISTORY;
+      limit = HISTORY;
+    }
+    int out = limit;
+    int stop = out + Math.min(BLOCK, uncompressedLeft);
+    int last = out + uncompressedLeft;
+    int position = this.position;
+    int flags = this.flags;
+    // The ring buffer position of buffer[i] is (i + ringShift) & POSITION_MASK.
+    int ringShift = shift;
+    while (out < stop) {
+      flags >>>= 1;
+      if ((flags & 0x100) == 0) {
+        // Eight flag bits, one per following literal (1) or back-reference (0).
+        checkInput(position, 1);
+        flags = (data[position++] & 0xff) | 0xff00;
+      }
+      if ((flags & 1) != 0) {
+        checkInput(position, 1);
+        buffer[out++] = data[position++];
+      } else {
+        checkInput(position, 2);
+        int reference = (data[position] & 0xff) << 8 | data[position + 1] & 0xff;
+        position += 2;
+        int length = Math.min((reference >>> POSITION_BITS) + MIN_LENGTH, last - out);
+        int ringPosition = (reference + MAX_LENGTH) & POSITION_MASK;
+        int distance = (out + ringShift - ringPosition) & POSITION_MASK;
+        int from = out - (distance == 0 ? HISTORY : distance);
+        if (distance == 0 || distance >= length) {
+          System.arraycopy(buffer, from, buffer, out, length);
+          out += length;
+        } else {
+          // Overlapping copies repeat the bytes they have just written.
+          for (int copyEnd = out + length; out < copyEnd; out++) {
+            buffer[out] = buffer[from++];
+          }
+        }
+      }
+    }
+    this.position = position;
+    this.flags = flags;
+    uncompressedLeft -= out - limit;
+    limit = out;
+  }
+
+  private void checkInput(int position, int length) {
+    if (position + length > end) {
+      throw new IllegalArgumentException("compressed bitmap data ends early");
+    }
+  }
+
+  private int readByte() {
+    checkInput(position, 1);
+    return data[position++] & 0xff;
+  }
+
+  private int readInt() {
+    return readByte() << 24 | readByte() << 16 | readByte() << 8 | readByte();
+  }
+}
@@ -0,0 +1,101 @@
+package net.buildism.mhk.MohawkExtractor;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admission control for {@code --max-inflight-mb}. Before a resource is worked on, its working set
+ * is estimated from its tBMP header or file table size, and the work only starts once that fits
+ * in what is left of the budget. Resources are admitted in the order they ask, so a large bitmap
+ * is not starved by a stream of small ones, and one larger than the whole budget waits until
+ * nothing else is in flight and then runs alone. Peak memory thus stays near the budget (or the
+ * largest single resource) however many threads are running.
+ *
+ * <p>A lock and condition are used rather than a monitor, so waiting does not pin virtual threads.
+ */
+class MemoryBudget {
+
+  // Non-bitmap resources are streamed from the archive through buffers of about this size.
+  private static final long STREAMING = 64 * 1024;
+
+  private final long limit;
+  private final boolean indexed;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
+  private long inFlight;
+  private long nextTicket;
+  private long serving;
+
+  MemoryBudget(Options options) {
+    this.limit = options.maxInflightMb > 0 ? options.maxInflightMb * 1024L * 1024L : 0;
+    this.indexed = options.indexed;
+  }
+
+  /**
+   * Waits until {@code resource} fits in the budget and reserves its estimated working set.
+   * Returns the amount reserved, to be handed back to {@link #release} once the resource is done.
+   */
+  long acquire(MohawkArchive.Resource resource) {
+    if (limit == 0) {
+      return 0;
+    }
+    long charge = Math.min(estimate(resource), limit);
+    boolean interrupted = false;
+    lock.lock();
+    try {
+      long ticket = nextTicket++;
+      while (ticket != serving || inFlight + charge > limit) {
+        try {
+          changed.await();
+        } catch (InterruptedException e) {
+          // Finish waiting, like Semaphore.acquireUninterruptibly, so the caller can always release.
+          interrupted = true;
+        }
+      }
+      serving++;
+      inFlight += charge;
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    return charge;
+  }
+
+  void release(long charge) {
+    if (charge == 0) {
+      return;
+    }
+    lock.lock();
+    try {
+      inFlight -= charge;
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the approximate peak heap use of extracting {@code resource}: for bitmaps the copy of
+   * the compressed data, the decoded indices or pixels, the RGB pixels unless writing indexed PNGs,
+   * and the encoded PNG; for other types only the buffers they are streamed through.
+   */
+  long estimate(MohawkArchive.Resource resource) {
+    if (!resource.getType().equals("tBMP") || resource.getSize() < 8) {
+      return STREAMING;
+    }
+    MohawkBitmap.Header header = resource.getBitmapHeader();
+    long pixels = (long) header.getWidth() * header.getHeight();
+    long estimate = resource.getSize();
+    if (header.getBitsPerPixel() == 24) {
+      estimate += 4 * pixels + 3 * pixels;
+    } else if (indexed) {
+      estimate += (long) header.getBytesPerRow() * header.getHeight() + pixels;
+    } else {
+      estimate += (long) header.getBytesPerRow() * header.getHeight() + 4 * pixels + 3 * pixels;
+    }
+    return estimate;
+  }
+}
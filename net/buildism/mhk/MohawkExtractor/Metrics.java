@@ -0,0 +1,222 @@
+package net.buildism.mhk.MohawkExtractor;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Timings and counters for an extraction run. Each stage a resource goes through is timed into a
+ * histogram and emitted as a JFR event, which costs next to nothing unless a recording is running:
+ *
+ * <pre>
+ *   java -XX:StartFlightRecording=filename=run.jfr -jar mohawk-extractor.jar ...
+ * </pre>
+ *
+ * In the serial and parallel extractors PNG encoding and writing happen in one pass, so the
+ * encode stage includes the write; the pipeline times them separately, and times the wait for
+ * room in the memory budget and the copy of the resource data as the admit stage. The texture
+ * stage times writing a bitmap to its {@code --textures} store, and for bitmaps that extraction
+ * did not decode also decoding it there, so that the decode figures only cover extraction.
+ */
+class Metrics {
+
+  enum Stage { HASH, ADMIT, DECODE, CONVERT, ENCODE, WRITE, TEXTURE }
+
+  private final Histogram[] histograms = new Histogram[Stage.values().length];
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder bytesOut = new LongAdder();
+  private final Map<String, LongAdder> counts = new ConcurrentHashMap<>();
+  private final long started = System.nanoTime();
+
+  Metrics() {
+    for (int i = 0; i < histograms.length; i++) {
+      histograms[i] = new Histogram();
+    }
+  }
+
+  /** Starts timing {@code stage} for {@code resource}. */
+  Timer time(Stage stage, MohawkArchive.Resource resource) {
+    return new Timer(stage, resource);
+  }
+
+  /** Counts a resource by type and, for bitmaps, by bit depth and compression. */
+  void countResource(MohawkArchive.Resource resource) {
+    bytesIn.add(resource.getSize());
+    count(resource.getType());
+    if (resource.getType().equals("tBMP") && resource.getSize() >= 8) {
+      MohawkBitmap.Header header = resource.getBitmapHeader();
+      count("tBMP " + header.getBitsPerPixel() + "bpp primary=" + header.getPrimaryCompression()
+          + " secondary=" + header.getSecondaryCompression());
+    }
+  }
+
+  void countOutput(long bytes) {
+    bytesOut.add(bytes);
+  }
+
+  void count(String key) {
+    counts.computeIfAbsent(key, k -> new LongAdder()).increment();
+  }
+
+  /** Prints the summary as plain text or, if {@code json} is set, as one JSON object. */
+  void print(PrintStream out, boolean json) {
+    double seconds = (System.nanoTime() - started) / 1e9;
+    Map<String, Long> sortedCounts = new TreeMap<>();
+    counts.forEach((key, count) -> sortedCounts.put(key, count.sum()));
+    StringBuilder s = new StringBuilder();
+    if (json) {
+      s.append("{\"seconds\":").append(String.format("%.3f", seconds))
+          .append(",\"bytesIn\":").append(bytesIn.sum())
+          .append(",\"bytesOut\":").append(bytesOut.sum())
+          .append(",\"counts\":{");
+      String separator = "";
+      for (Map.Entry<String, Long> count : sortedCounts.entrySet()) {
+        s.append(separator).append('"').append(count.getKey()).append("\":")
+            .append(count.getValue());
+        separator = ",";
+      }
+      s.append("},\"stages\":{");
+      separator = "";
+      for (Stage stage : Stage.values()) {
+        Histogram h = histograms[stage.ordinal()];
+        if (h.count.sum() == 0) continue;
+        s.append(separator).append('"').append(stage.name().toLowerCase()).append("\":{")
+            .append("\"count\":").append(h.count.sum())
+            .append(",\"totalNs\":").append(h.total.sum())
+            .append(",\"p50Ns\":").append(h.percentile(0.5))
+            .append(",\"p90Ns\":").append(h.percentile(0.9))
+            .append(",\"p99Ns\":").append(h.percentile(0.99))
+            .append(",\"maxNs\":").append(h.max())
+            .append('}');
+        separator = ",";
+      }
+      s.append("}}");
+    } else {
+      s.append(String.format("%.3f s, %d bytes in (%.1f MB/s), %d bytes out%n", seconds,
+          bytesIn.sum(), bytesIn.sum() / 1e6 / seconds, bytesOut.sum()));
+      for (Map.Entry<String, Long> count : sortedCounts.entrySet()) {
+        s.append(String.format("%8d  %s%n", count.getValue(), count.getKey()));
+      }
+      s.append(String.format("%-8s %8s %10s %10s %10s %10s %10s%n",
+          "stage", "count", "total ms", "p50 us", "p90 us", "p99 us", "max us"));
+      for (Stage stage : Stage.values()) {
+        Histogram h = histograms[stage.ordinal()];
+        if (h.count.sum() == 0) continue;
+        s.append(String.format("%-8s %8d %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+            stage.name().toLowerCase(), h.count.sum(), h.total.sum() / 1e6,
+            h.percentile(0.5) / 1e3, h.percentile(0.9) / 1e3, h.percentile(0.99) / 1e3,
+            h.max() / 1e3));
+      }
+    }
+    out.println(s.toString().trim());
+  }
+
+  /** Times one stage of one resource. */
+  class Timer {
+    private final Stage stage;
+    private final MohawkArchive.Resource resource;
+    private final StageEvent event = new StageEvent();
+    private final long start;
+
+    private Timer(Stage stage, MohawkArchive.Resource resource) {
+      this.stage = stage;
+      this.resource = resource;
+      event.begin();
+      start = System.nanoTime();
+    }
+
+    void stop() {
+      histograms[stage.ordinal()].record(System.nanoTime() - start);
+      event.end();
+      if (event.shouldCommit()) {
+        event.stage = stage.name().toLowerCase();
+        event.resourceType = resource.getType();
+        event.resourceId = resource.getId();
+        event.size = resource.getSize();
+        event.commit();
+      }
+    }
+  }
+
+  /**
+   * A latency histogram with eight linear sub-buckets per power of two, so percentiles are within
+   * about 12% of the recorded values.
+   */
+  private static class Histogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    final LongAdder count = new LongAdder();
+    final LongAdder total = new LongAdder();
+    private final AtomicLongArray buckets = new AtomicLongArray(bucket(Long.MAX_VALUE) + 1);
+
+    void record(long nanos) {
+      count.increment();
+      total.add(nanos);
+      buckets.incrementAndGet(bucket(Math.max(0, nanos)));
+    }
+
+    long percentile(double fraction) {
+      long target = (long) Math.ceil(fraction * count.sum());
+      long seen = 0;
+      for (int i = 0; i < buckets.length(); i++) {
+        seen += buckets.get(i);
+        if (seen >= target && seen > 0) {
+          return lowerBound(i);
+        }
+      }
+      return 0;
+    }
+
+    long max() {
+      for (int i = buckets.length() - 1; i >= 0; i--) {
+        if (buckets.get(i) > 0) {
+          return lowerBound(i + 1) - 1;
+        }
+      }
+      return 0;
+    }
+
+    private static int bucket(long value) {
+      if (value < SUB_BUCKETS) {
+        return (int) value;
+      }
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+      return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long lowerBound(int bucket) {
+      if (bucket < SUB_BUCKETS) {
+        return bucket;
+      }
+      int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+      return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+    }
+  }
+
+  @Name("net.buildism.mhk.Stage")
+  @Label("Resource Stage")
+  @Category("Mohawk Extractor")
+  @StackTrace(false)
+  static class StageEvent extends Event {
+    @Label("Stage")
+    String stage;
+    @Label("Resource Type")
+    String resourceType;
+    @Label("Resource ID")
+    int resourceId;
+    @Label("Resource Size")
+    @DataAmount
+    long size;
+  }
+}
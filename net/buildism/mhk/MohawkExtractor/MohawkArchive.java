@@ -0,0 +1,350 @@
+package net.buildism.mhk.MohawkExtractor;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A Mohawk archive opened for random access. Opening only reads the RSRC header, the type table and
+ * the file table; the resource and name tables of a type are read the first time that type is
+ * accessed, and resource data is only decoded when asked for.
+ *
+ * <p>An archive opened with an index path is described by the {@link ArchiveIndex} there instead,
+ * so none of its tables have to be read at all. The index is written on the first such open.
+ */
+public class MohawkArchive implements Closeable {
+
+  private final Path path;
+  private final FileChannel channel;
+  private final ByteBuffer bb;
+  private final Map<String, TypeInfo> resourceTypes = new HashMap<>();
+  private final int resourceDirOffset;
+  private final int resourceNameListOffset;
+  private final FileInfo[] files;
+  private final ArchiveIndex index;
+
+  private MohawkArchive(Path path, FileChannel channel, ArchiveIndex index) throws IOException {
+    this.path = path;
+    this.channel = channel;
+    this.bb = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    this.index = index;
+
+    if (index != null) {
+      for (String type : index.getTypes().keySet()) {
+        resourceTypes.put(type, new TypeInfo(type, 0, 0));
+      }
+      resourceDirOffset = 0;
+      resourceNameListOffset = 0;
+      files = null;
+      return;
+    }
+
+    ByteBuffer in = bb.duplicate();
+    in.getInt(); // "MHWK" signature
+    in.getInt(); // file size - 8
+    in.getInt(); // "RSRC"
+    in.getShort(); // version (0x100)
+    in.getShort(); // unused
+    in.getInt(); // file size
+    resourceDirOffset = in.getInt();
+    int fileTableOffset = ushort(in.getShort());
+    in.getShort(); // file table length
+
+    in.position(resourceDirOffset);
+    resourceNameListOffset = ushort(in.getShort());
+    int typeNameCount = ushort(in.getShort());
+    for (int i = 0; i < typeNameCount; i++) {
+      byte[] typeBytes = new byte[4];
+      in.get(typeBytes);
+      String type = new String(typeBytes);
+      resourceTypes.put(type, new TypeInfo(type, ushort(in.getShort()), ushort(in.getShort())));
+    }
+
+    in.position(resourceDirOffset + fileTableOffset);
+    int fileCount = in.getInt();
+    files = new FileInfo[fileCount];
+    for (int i = 0; i < fileCount; i++) {
+      int offset = in.getInt();
+      if (i > 0) {
+        files[i - 1].size = offset - files[i - 1].offset;
+      }
+      int size0 = ushort(in.getShort());
+      int size1 = ubyte(in.get());
+      int size2 = ubyte(in.get()) & 7;
+      int fileSize = size0 | (size1 << 16) | (size2 << 24);
+      files[i] = new FileInfo(offset, fileSize);
+      in.getShort();
+    }
+  }
+
+  public static MohawkArchive open(Path path) throws IOException {
+    return open(path, (ArchiveIndex) null);
+  }
+
+  /**
+   * Opens an archive using the index at {@code indexPath}. If there is no index for the current
+   * version of the archive, the archive's tables are read as usual and a new index is written.
+   */
+  public static MohawkArchive open(Path path, Path indexPath) throws IOException {
+    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    long size = attributes.size();
+    long modified = attributes.lastModifiedTime().toMillis();
+    ArchiveIndex index = ArchiveIndex.load(indexPath, size, modified);
+    MohawkArchive archive = open(path, index);
+    if (index == null) {
+      try {
+        ArchiveIndex.write(indexPath, archive, size, modified);
+      } catch (IOException e) {
+        System.out.println("could not write " + indexPath + ": " + e);
+      }
+    }
+    return archive;
+  }
+
+  private static MohawkArchive open(Path path, ArchiveIndex index) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      return new MohawkArchive(path, channel, index);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  public Path getPath() {
+    return path;
+  }
+
+  public Set<String> getTypes() {
+    return Collections.unmodifiableSet(resourceTypes.keySet());
+  }
+
+  /** Returns the IDs of all resources of the given type, or an empty set if there are none. */
+  public Set<Integer> getResourceIds(String type) {
+    TypeInfo typeInfo = resourceTypes.get(type);
+    if (typeInfo == null) {
+      return Collections.emptySet();
+    }
+    return Collections.unmodifiableSet(resources(typeInfo).keySet());
+  }
+
+  /** Returns the resource with the given type and ID, or null if there is no such resource. */
+  public Resource get(String type, int id) {
+    TypeInfo typeInfo = resourceTypes.get(type);
+    if (typeInfo == null) {
+      return null;
+    }
+    return resources(typeInfo).get(id);
+  }
+
+  /** Returns the resource with the given type and name, or null if there is no such resource. */
+  public Resource getByName(String type, String name) {
+    TypeInfo typeInfo = resourceTypes.get(type);
+    if (typeInfo == null) {
+      return null;
+    }
+    resources(typeInfo);
+    return typeInfo.resourcesByName.get(name);
+  }
+
+  /** Decodes the tBMP resource with the given ID, or returns null if there is no such bitmap. */
+  public BufferedImage readBitmap(int id) {
+    Resource resource = get("tBMP", id);
+    return resource == null ? null : MohawkBitmap.decode(resource.getData());
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  private Map<Integer, Resource> resources(TypeInfo typeInfo) {
+    synchronized (typeInfo) {
+      if (typeInfo.resources == null) {
+        if (index != null) {
+          index.readResources(this, typeInfo);
+        } else {
+          readResourceTable(typeInfo);
+        }
+      }
+      return typeInfo.resources;
+    }
+  }
+
+  private void readResourceTable(TypeInfo typeInfo) {
+    ByteBuffer in = bb.duplicate();
+    Map<Integer, Integer> resourceIndexToResourceId = new HashMap<>();
+    Map<Integer, Resource> resources = new HashMap<>();
+    in.position(resourceDirOffset + typeInfo.resourceTableOffset);
+    int resourceCount = ushort(in.getShort());
+    for (int i = 0; i < resourceCount; i++) {
+      int resourceId = ushort(in.getShort());
+      int resourceIndexInFileTable = ushort(in.getShort());
+      resourceIndexToResourceId.put(resourceIndexInFileTable, resourceId);
+      resources.put(resourceId,
+          new Resource(this, typeInfo.type, resourceId, files[resourceIndexInFileTable - 1]));
+    }
+
+    Map<String, Resource> resourcesByName = new HashMap<>();
+    in.position(resourceDirOffset + typeInfo.nameTableOffset);
+    int nameCount = ushort(in.getShort());
+    for (int i = 0; i < nameCount; i++) {
+      int nameListOffset = ushort(in.getShort());
+      int resourceIndexInFileTable = ushort(in.getShort());
+      String name = readName(resourceDirOffset + resourceNameListOffset + nameListOffset);
+      Resource resource = resources.get(resourceIndexToResourceId.get(resourceIndexInFileTable));
+      resource.name = name;
+      resourcesByName.put(name, resource);
+    }
+    typeInfo.resources = resources;
+    typeInfo.resourcesByName = resourcesByName;
+  }
+
+  private String readName(int offset) {
+    int end = offset;
+    while (bb.get(end) != 0) {
+      end++;
+    }
+    byte[] name = new byte[end - offset];
+    bb.get(offset, name);
+    return new String(name, StandardCharsets.ISO_8859_1);
+  }
+
+  static int ushort(int value) {
+    return value < 0 ? value + 65536 : value;
+  }
+
+  static int ubyte(int value) {
+    return value < 0 ? value + 256 : value;
+  }
+
+  /** A single resource in the archive. Its data is only read when {@link #getData()} is called. */
+  public static class Resource {
+    private final MohawkArchive archive;
+    private final String type;
+    private final int id;
+    private final FileInfo file;
+    String name;
+    MohawkBitmap.Header header;
+
+    Resource(MohawkArchive archive, String type, int id, FileInfo file) {
+      this.archive = archive;
+      this.type = type;
+      this.id = id;
+      this.file = file;
+    }
+
+    /** Returns the archive the resource belongs to. */
+    public MohawkArchive getArchive() {
+      return archive;
+    }
+
+    public String getType() {
+      return type;
+    }
+
+    public int getId() {
+      return id;
+    }
+
+    /** Returns the resource name, or null if it has none. */
+    public String getName() {
+      return name;
+    }
+
+    /** Returns the absolute offset of the resource data in the archive file. */
+    public int getOffset() {
+      return file.offset;
+    }
+
+    public int getSize() {
+      return file.size;
+    }
+
+    /** Returns a read-only view of the resource data, backed by the archive mapping. */
+    public ByteBuffer getData() {
+      return archive.bb.slice(file.offset, file.size);
+    }
+
+    /**
+     * Returns the header of a tBMP resource without decoding the bitmap. It comes from the index if
+     * the archive was opened with one, and is otherwise read from the resource data.
+     */
+    public MohawkBitmap.Header getBitmapHeader() {
+      if (header == null) {
+        header = MohawkBitmap.Header.read(getData());
+      }
+      return header;
+    }
+
+    /**
+     * Copies {@code count} bytes of the resource data, starting {@code position} bytes into it, to
+     * {@code target}. The bytes go straight from the archive file to the target channel where the
+     * platform supports it, without passing through the heap.
+     */
+    public void transferTo(long position, long count, WritableByteChannel target)
+        throws IOException {
+      long from = file.offset + position;
+      while (count > 0) {
+        long n = archive.channel.transferTo(from, count, target);
+        if (n <= 0) {
+          throw new EOFException(archive.path + ": resource " + type + " " + id + " is truncated");
+        }
+        from += n;
+        count -= n;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return file + " " + name;
+    }
+  }
+
+  static class TypeInfo {
+    final String type;
+    final int resourceTableOffset;
+    final int nameTableOffset;
+    Map<Integer, Resource> resources;
+    Map<String, Resource> resourcesByName;
+
+    TypeInfo(String type, int resourceTableOffset, int nameTableOffset) {
+      this.type = type;
+      this.resourceTableOffset = resourceTableOffset;
+      this.nameTableOffset = nameTableOffset;
+    }
+
+    @Override
+    public String toString() {
+      return resourceTableOffset + " " + nameTableOffset;
+    }
+  }
+
+  static class FileInfo {
+    final int offset;
+    int size;
+
+    FileInfo(int offset, int size) {
+      this.offset = offset;
+      this.size = size;
+    }
+
+    @Override
+    public String toString() {
+      return  offset + " " + size;
+    }
+  }
+}
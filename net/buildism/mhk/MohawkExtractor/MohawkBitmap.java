@@ -0,0 +1,321 @@
+package net.buildism.mhk.MohawkExtractor;
+
+import static net.buildism.mhk.MohawkExtractor.MohawkArchive.ubyte;
+import static net.buildism.mhk.MohawkExtractor.MohawkArchive.ushort;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+
+/**
+ * A decoded tBMP resource. 8-bpp bitmaps keep their palette indices, with rows {@link
+ * #getBytesPerRow()} bytes apart, and are only expanded to RGB when an RGB image is asked for.
+ * See http://insidethelink.ortiche.net/wiki/index.php/Mohawk_Bitmaps for the format.
+ */
+public class MohawkBitmap {
+
+  private static final int[] BPP = new int[]{1, 4, 8, 16, 24};
+
+  private static final int NONE = 0;
+  private static final int RLE8 = 1;
+  private static final int RLE_OTHER = 3;
+
+  private static final int LZ = 1;
+  private static final int LZ_OTHER = 2;
+  private static final int RIVEN = 4;
+
+  private static final int[] RGB_MASKS = new int[]{0xff0000, 0xff00, 0xff};
+  private static final DirectColorModel RGB_MODEL =
+      new DirectColorModel(24, 0xff0000, 0xff00, 0xff);
+
+  private final int width;
+  private final int height;
+  private final int bytesPerRow;
+  private final int[] palette;
+  private final byte[] indices;
+  private final int[] rgb;
+
+  private MohawkBitmap(int width, int height, int bytesPerRow, int[] palette, byte[] indices,
+      int[] rgb) {
+    this.width = width;
+    this.height = height;
+    this.bytesPerRow = bytesPerRow;
+    this.palette = palette;
+    this.indices = indices;
+    this.rgb = rgb;
+  }
+
+  /** Decodes a bitmap to an RGB image from a buffer holding the tBMP resource data. */
+  public static BufferedImage decode(ByteBuffer bb) {
+    return read(bb).toImage();
+  }
+
+  /** Decodes a bitmap from a buffer holding the tBMP resource data, starting at its position. */
+  public static MohawkBitmap read(ByteBuffer bb) {
+    Header header = Header.read(bb);
+    int width = header.getWidth();
+    int height = header.getHeight();
+    int bytesPerRow = header.getBytesPerRow();
+    int bpp = header.getBitsPerPixel();
+    int secondaryCompression = header.getSecondaryCompression();
+    int primaryCompression = header.getPrimaryCompression();
+    if (!isSupported(header)) {
+      throw new UnsupportedFormatException("unsupported bitmap format: bpp=" + bpp + " primary="
+          + primaryCompression + " secondary=" + secondaryCompression);
+    }
+
+    if (bpp == 24) {
+      int[] pixels = new int[width * height];
+      byte[] row = new byte[width * 4];
+      for (int y = 0; y < height; y++) {
+        // Each row is width BGR triplets followed by width bytes of padding.
+        bb.get(row);
+        int i = y * width;
+        for (int x = 0; x < width * 3; x += 3) {
+          pixels[i++] = ubyte(row[x + 2]) << 16 | ubyte(row[x + 1]) << 8 | ubyte(row[x]);
+        }
+      }
+      return new MohawkBitmap(width, height, width, null, null, pixels);
+    }
+
+    bb.getShort();
+    bb.get(); // bits per color, always 24
+    int colorCount = ubyte(bb.get()) + 1;
+    int[] palette = new int[colorCount];
+    for (int i = 0; i < colorCount; i++) {
+      int b = ubyte(bb.get());
+      int g = ubyte(bb.get());
+      int r = ubyte(bb.get());
+      palette[i] = r << 16 | g << 8 | b;
+    }
+    byte[] indices;
+    if (primaryCompression == NONE && secondaryCompression == NONE) {
+      indices = new byte[bytesPerRow * height];
+      bb.get(indices);
+    } else if (primaryCompression != RIVEN) {
+      boolean lz = primaryCompression == LZ;
+      boolean rle = secondaryCompression == RLE8;
+      if (bb.hasArray()) {
+        indices = LzRleDecoder.decompress(bb.array(), bb.arrayOffset() + bb.position(),
+            bb.remaining(), lz, rle, width, bytesPerRow, height);
+      } else {
+        byte[] data = new byte[bb.remaining()];
+        bb.get(data);
+        indices = LzRleDecoder.decompress(data, 0, data.length, lz, rle, width, bytesPerRow,
+            height);
+      }
+    } else {
+      bb.getInt(); // unknown
+      if (bb.hasArray()) {
+        indices = RivenDecoder.decompress(bb.array(), bb.arrayOffset() + bb.position(),
+            bb.remaining(), bytesPerRow, height);
+      } else {
+        byte[] data = new byte[bb.remaining()];
+        bb.get(data);
+        indices = RivenDecoder.decompress(data, 0, data.length, bytesPerRow, height);
+      }
+    }
+    return new MohawkBitmap(width, height, bytesPerRow, palette, indices, null);
+  }
+
+  /**
+   * Returns true if {@link #read} can decode bitmaps with this header: 24-bpp without compression,
+   * or 8-bpp with Riven compression or with any mix of LZ and RLE8. The LZ_OTHER and RLE_OTHER
+   * modes are undocumented and not supported.
+   */
+  public static boolean isSupported(Header header) {
+    int primary = header.getPrimaryCompression();
+    int secondary = header.getSecondaryCompression();
+    if (header.getBitsPerPixel() == 24) {
+      return primary == NONE && secondary == NONE;
+    }
+    return header.getBitsPerPixel() == 8
+        && (primary == NONE || primary == LZ || primary == RIVEN && secondary == NONE)
+        && (secondary == NONE || secondary == RLE8);
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /** Returns the distance between rows in {@link #getIndices()}, which may exceed the width. */
+  public int getBytesPerRow() {
+    return bytesPerRow;
+  }
+
+  /** Returns true for 8-bpp bitmaps, which have a palette and an index buffer. */
+  public boolean isIndexed() {
+    return indices != null;
+  }
+
+  /** Returns the palette as 0xRRGGBB values, or null for 24-bpp bitmaps. */
+  public int[] getPalette() {
+    return palette;
+  }
+
+  /** Returns the palette index of each pixel, or null for 24-bpp bitmaps. */
+  public byte[] getIndices() {
+    return indices;
+  }
+
+  /** Stores row {@code y} of the bitmap in {@code row} as RGB byte triplets. */
+  public void getRgbRow(int y, byte[] row) {
+    int i = 0;
+    if (rgb != null) {
+      for (int x = y * width, end = x + width; x < end; x++) {
+        int color = rgb[x];
+        row[i++] = (byte) (color >> 16);
+        row[i++] = (byte) (color >> 8);
+        row[i++] = (byte) color;
+      }
+    } else {
+      for (int x = y * bytesPerRow, end = x + Math.min(width, bytesPerRow); x < end; x++) {
+        int color = palette[indices[x] & 0xff];
+        row[i++] = (byte) (color >> 16);
+        row[i++] = (byte) (color >> 8);
+        row[i++] = (byte) color;
+      }
+    }
+  }
+
+  /**
+   * Returns a copy of this bitmap with the palette applied, holding one 0xRRGGBB value per pixel.
+   * 24-bpp bitmaps are returned as they are.
+   */
+  public MohawkBitmap toRgb() {
+    if (rgb != null) {
+      return this;
+    }
+    int[] pixels = new int[width * height];
+    int columns = Math.min(width, bytesPerRow);
+    for (int y = 0; y < height; y++) {
+      convertRow(indices, y * bytesPerRow, palette, pixels, y * width, columns);
+    }
+    return new MohawkBitmap(width, height, width, null, null, pixels);
+  }
+
+  /** Returns the bitmap as a TYPE_INT_RGB image. */
+  public BufferedImage toImage() {
+    int[] pixels = toRgb().rgb;
+    WritableRaster raster = Raster.createPackedRaster(
+        new DataBufferInt(pixels, pixels.length), width, height, width, RGB_MASKS, null);
+    return new BufferedImage(RGB_MODEL, raster, false, null);
+  }
+
+  /**
+   * Returns 8-bpp bitmaps as a TYPE_BYTE_INDEXED image sharing this bitmap's index buffer, and
+   * 24-bpp bitmaps as a TYPE_INT_RGB image.
+   */
+  public BufferedImage toIndexedImage() {
+    if (indices == null) {
+      return toImage();
+    }
+    byte[] r = new byte[palette.length];
+    byte[] g = new byte[palette.length];
+    byte[] b = new byte[palette.length];
+    for (int i = 0; i < palette.length; i++) {
+      r[i] = (byte) (palette[i] >> 16);
+      g[i] = (byte) (palette[i] >> 8);
+      b[i] = (byte) palette[i];
+    }
+    IndexColorModel colorModel = new IndexColorModel(8, palette.length, r, g, b);
+    WritableRaster raster = Raster.createInterleavedRaster(
+        new DataBufferByte(indices, indices.length), width, height, bytesPerRow, 1, new int[]{0},
+        null);
+    return new BufferedImage(colorModel, raster, false, null);
+  }
+
+  /** Looks up a row of palette indices and stores the resulting RGB values in {@code pixels}. */
+  private static void convertRow(byte[] indices, int in, int[] palette, int[] pixels, int out,
+      int count) {
+    for (int x = 0; x < count; x++) {
+      pixels[out + x] = palette[indices[in + x] & 0xff];
+    }
+  }
+
+  /** Thrown by {@link #read} for bitmaps in a format {@link #isSupported} rejects. */
+  public static class UnsupportedFormatException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1L;
+
+    public UnsupportedFormatException(String message) {
+      super(message);
+    }
+  }
+
+  /** The 8-byte header at the start of a tBMP resource. */
+  public static class Header {
+    private final int width;
+    private final int height;
+    private final int bytesPerRow;
+    private final int compression;
+    private final int colorCount;
+
+    Header(int width, int height, int bytesPerRow, int compression, int colorCount) {
+      this.width = width;
+      this.height = height;
+      this.bytesPerRow = bytesPerRow;
+      this.compression = compression;
+      this.colorCount = colorCount;
+    }
+
+    /**
+     * Reads the header from a buffer holding the tBMP resource data, starting at its position. The
+     * buffer is left just after the 8 header bytes; the palette size is peeked at without moving it.
+     */
+    public static Header read(ByteBuffer bb) {
+      int width = ushort(bb.getShort()) & 0x3ff;
+      int height = ushort(bb.getShort()) & 0x3ff;
+      int bytesPerRow = ushort(bb.getShort()) & 0x3fe;
+      int compression = ushort(bb.getShort());
+      int colorCount = 0;
+      if ((compression & 0b111) != 4 && bb.remaining() >= 4) {
+        colorCount = ubyte(bb.get(bb.position() + 3)) + 1;
+      }
+      return new Header(width, height, bytesPerRow, compression, colorCount);
+    }
+
+    public int getWidth() {
+      return width;
+    }
+
+    public int getHeight() {
+      return height;
+    }
+
+    public int getBytesPerRow() {
+      return bytesPerRow;
+    }
+
+    /** Returns the raw compression word, which packs the bit depth and both compression fields. */
+    public int getCompression() {
+      return compression;
+    }
+
+    public int getBitsPerPixel() {
+      int index = compression & 0b111;
+      return index < BPP.length ? BPP[index] : 0;
+    }
+
+    public int getSecondaryCompression() {
+      return (compression & 0b11110000) >> 4;
+    }
+
+    public int getPrimaryCompression() {
+      return (compression & 0b111100000000) >> 8;
+    }
+
+    /** Returns the number of palette entries, or 0 for 24-bpp bitmaps. */
+    public int getColorCount() {
+      return colorCount;
+    }
+  }
+}
@@ -0,0 +1,163 @@
+package net.buildism.mhk.MohawkExtractor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Extracts tMOV resources. These are QuickTime movies whose chunk offsets are relative to the start
+ * of the archive, so they have to be rebased onto the start of the movie to play standalone.
+ *
+ * <p>The chunk offset tables are found by walking the atom tree (moov, trak, mdia, minf, stbl down
+ * to stco or co64) using the atom sizes, so only the headers of the atoms on that path are read and
+ * sample data is never scanned.
+ *
+ * <p>{@link #write} copies the rest of the movie from the archive file to the output channel with
+ * {@link FileChannel#transferTo}, so only the offset tables pass through the heap.
+ */
+public class MohawkMovie {
+
+  private static final int MOOV = atom("moov");
+  private static final int TRAK = atom("trak");
+  private static final int MDIA = atom("mdia");
+  private static final int MINF = atom("minf");
+  private static final int STBL = atom("stbl");
+  private static final int STCO = atom("stco");
+  private static final int CO64 = atom("co64");
+
+  private static final int TABLE_BUFFER_SIZE = 4096;
+
+  /**
+   * Writes the movie to {@code out} with its chunk offsets rebased. Everything but the offset
+   * tables is copied from the archive file by the kernel; the tables are rewritten through a small
+   * buffer, so heap use does not grow with the size of the movie.
+   */
+  public static void write(MohawkArchive.Resource resource, WritableByteChannel out)
+      throws IOException {
+    ByteBuffer movie = resource.getData();
+    List<ChunkOffsets> tables = findChunkOffsets(movie);
+    ByteBuffer buffer = ByteBuffer.allocate(TABLE_BUFFER_SIZE);
+    long position = 0;
+    for (ChunkOffsets table : tables) {
+      resource.transferTo(position, table.position - position, out);
+      int perBuffer = TABLE_BUFFER_SIZE / table.entrySize();
+      for (int first = 0; first < table.count; first += perBuffer) {
+        int entries = Math.min(perBuffer, table.count - first);
+        int length = entries * table.entrySize();
+        buffer.clear();
+        buffer.put(movie.slice(table.position + first * table.entrySize(), length)).flip();
+        table.rebase(buffer, 0, entries, resource.getOffset());
+        while (buffer.hasRemaining()) {
+          out.write(buffer);
+        }
+      }
+      position = table.position + (long) table.count * table.entrySize();
+    }
+    resource.transferTo(position, movie.limit() - position, out);
+  }
+
+  /** Returns the chunk offset tables of a movie, in the order they appear in it. */
+  static List<ChunkOffsets> findChunkOffsets(ByteBuffer movie) {
+    List<ChunkOffsets> tables = new ArrayList<>();
+    walk(movie, 0, movie.limit(), 0, tables);
+    return tables;
+  }
+
+  /**
+   * Visits the atoms between {@code start} and {@code end}, descending into the containers on the
+   * path to the chunk offset tables. {@code depth} is the index of that path the atoms belong to.
+   */
+  private static void walk(ByteBuffer movie, long start, long end, int depth,
+      List<ChunkOffsets> tables) {
+    long position = start;
+    while (position + 8 <= end) {
+      int p = (int) position;
+      long size = movie.getInt(p) & 0xffffffffL;
+      int type = movie.getInt(p + 4);
+      int header = 8;
+      if (size == 1) {
+        if (position + 16 > end) return;
+        size = movie.getLong(p + 8);
+        header = 16;
+      } else if (size == 0) {
+        size = end - position;
+      }
+      if (size < header || position + size > end) {
+        // Truncated or corrupt atom; nothing after it can be trusted.
+        return;
+      }
+      long body = position + header;
+      if (depth < 5 && type == containerAt(depth)) {
+        walk(movie, body, position + size, depth + 1, tables);
+      } else if (depth == 5 && (type == STCO || type == CO64)) {
+        boolean wide = type == CO64;
+        // Version and flags, then the entry count.
+        if (body + 8 <= position + size) {
+          long count = movie.getInt((int) body + 4) & 0xffffffffL;
+          long entries = body + 8;
+          if (entries + count * (wide ? 8 : 4) <= position + size) {
+            tables.add(new ChunkOffsets((int) entries, (int) count, wide));
+          }
+        }
+      }
+      position += size;
+    }
+  }
+
+  private static int containerAt(int depth) {
+    switch (depth) {
+      case 0:
+        return MOOV;
+      case 1:
+        return TRAK;
+      case 2:
+        return MDIA;
+      case 3:
+        return MINF;
+      default:
+        return STBL;
+    }
+  }
+
+  private static int atom(String type) {
+    return type.charAt(0) << 24 | type.charAt(1) << 16 | type.charAt(2) << 8 | type.charAt(3);
+  }
+
+  /** The entries of an stco or co64 atom. */
+  static class ChunkOffsets {
+    /** Position of the first entry within the movie. */
+    final int position;
+    final int count;
+    /** True for co64, whose entries are 64-bit. */
+    final boolean wide;
+
+    ChunkOffsets(int position, int count, boolean wide) {
+      this.position = position;
+      this.count = count;
+      this.wide = wide;
+    }
+
+    int entrySize() {
+      return wide ? 8 : 4;
+    }
+
+    /**
+     * Subtracts {@code base} from {@code entries} entries of this table, which have been copied to
+     * {@code index} in {@code buffer}.
+     */
+    void rebase(ByteBuffer buffer, int index, int entries, int base) {
+      for (int i = 0; i < entries; i++) {
+        if (wide) {
+          int at = index + 8 * i;
+          buffer.putLong(at, buffer.getLong(at) - base);
+        } else {
+          int at = index + 4 * i;
+          buffer.putInt(at, buffer.getInt(at) - base);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,158 @@
+package net.buildism.mhk.MohawkExtractor;
+
+/** Command line options for {@link MohawkExtractor}. */
+class Options {
+  String rootPath = "C:/Program Files (x86)/Steam/steamapps/common/Riven";
+  String outputPath = ".";
+  boolean indexed;
+  int pngLevel = PngEncoder.BALANCED;
+  PngEncoder.Filter pngFilter = PngEncoder.Filter.ADAPTIVE;
+  int threads = 1;
+  boolean pipeline;
+  int ioThreads = 16;
+  int queueSize = 16;
+  boolean index;
+  String scanFormat;
+  ResourceFilter filter;
+  boolean serve;
+  int port;
+  int cacheMb = 512;
+  String statsFormat;
+  String dedup;
+  boolean pack;
+  boolean textures;
+  boolean allTypes;
+  int maxInflightMb;
+
+  static Options parse(String[] args) {
+    Options options = new Options();
+    String types = null;
+    String ids = null;
+    String name = null;
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      switch (arg) {
+        case "--output":
+          // Directory the per-archive output directories are created in.
+          options.outputPath = args[++i];
+          break;
+        case "--indexed":
+          // Write 8-bpp bitmaps as paletted PNGs instead of expanding them to RGB.
+          options.indexed = true;
+          break;
+        case "--png-level":
+          // fast, balanced, max or a zlib level from 0 to 9.
+          options.pngLevel = PngEncoder.parseLevel(args[++i]);
+          break;
+        case "--png-filter":
+          options.pngFilter = PngEncoder.Filter.valueOf(args[++i].toUpperCase());
+          break;
+        case "--threads":
+          // 0 means one worker per available processor.
+          options.threads = Integer.parseInt(args[++i]);
+          if (options.threads <= 0) {
+            options.threads = Runtime.getRuntime().availableProcessors();
+          }
+          break;
+        case "--pipeline":
+          // Run slicing, decompression, conversion, encoding and writing as separate stages.
+          options.pipeline = true;
+          break;
+        case "--io-threads":
+          options.ioThreads = Integer.parseInt(args[++i]);
+          break;
+        case "--queue-size":
+          options.queueSize = Integer.parseInt(args[++i]);
+          break;
+        case "--index":
+          // Keep a .mhkidx index next to each archive and open archives through it.
+          options.index = true;
+          break;
+        case "--scan":
+          // List resources as jsonl or csv instead of extracting them.
+          options.scanFormat = args[++i];
+          if (!options.scanFormat.equals("jsonl") && !options.scanFormat.equals("csv")) {
+            throw new IllegalArgumentException("unknown scan format: " + options.scanFormat);
+          }
+          break;
+        case "--type":
+          // Only extract resources of these comma-separated types.
+          types = args[++i];
+          break;
+        case "--ids":
+          // Only extract resources with these IDs, e.g. 1-200,305.
+          ids = args[++i];
+          break;
+        case "--name":
+          // Only extract resources whose name matches this glob, e.g. 'jspit*'.
+          name = args[++i];
+          break;
+        case "--serve":
+          // Serve bitmaps over HTTP on this localhost port instead of extracting them.
+          options.serve = true;
+          options.port = Integer.parseInt(args[++i]);
+          break;
+        case "--cache-mb":
+          // Memory for decoded bitmaps and PNGs cached by --serve.
+          options.cacheMb = Integer.parseInt(args[++i]);
+          break;
+        case "--stats":
+          // Print stage timings and counters as text or json at the end of the run.
+          options.statsFormat = args[++i];
+          if (!options.statsFormat.equals("text") && !options.statsFormat.equals("json")) {
+            throw new IllegalArgumentException("unknown stats format: " + options.statsFormat);
+          }
+          break;
+        case "--dedup":
+          // Decode identical resources once into <output>/objects, then link or map to them.
+          options.dedup = args[++i];
+          if (!options.dedup.equals("link") && !options.dedup.equals("map")) {
+            throw new IllegalArgumentException("unknown dedup mode: " + options.dedup);
+          }
+          break;
+        case "--pack":
+          // Write each archive's resources into one stored <archive>.zip instead of many files.
+          options.pack = true;
+          break;
+        case "--textures":
+          // Also write each archive's decoded bitmaps into a mappable <archive>.tex.
+          options.textures = true;
+          break;
+        case "--all-types":
+          // Export every resource type, not just bitmaps and movies.
+          options.allTypes = true;
+          break;
+        case "--max-inflight-mb":
+          // Start resources only while their estimated working sets fit in this many megabytes.
+          options.maxInflightMb = Integer.parseInt(args[++i]);
+          if (options.maxInflightMb <= 0) {
+            throw new IllegalArgumentException("--max-inflight-mb must be positive");
+          }
+          break;
+        default:
+          if (arg.startsWith("-")) {
+            throw new IllegalArgumentException("unknown option: " + arg);
+          }
+          options.rootPath = arg;
+      }
+    }
+    if (options.pack && (options.dedup != null || options.pipeline)) {
+      throw new IllegalArgumentException("--pack cannot be combined with --dedup or --pipeline");
+    }
+    if (types != null && !options.allTypes && options.scanFormat == null && !options.serve) {
+      // Without --all-types only bitmaps and movies are exported, so any other type would
+      // silently select nothing.
+      for (String type : types.split(",")) {
+        if (!type.equals("tBMP") && !type.equals("tMOV")) {
+          throw new IllegalArgumentException("--all-types is required to export " + type);
+        }
+      }
+    }
+    options.filter = new ResourceFilter(types, ids, name);
+    return options;
+  }
+
+  PngEncoder pngEncoder() {
+    return new PngEncoder(pngLevel, pngFilter, indexed);
+  }
+}
@@ -0,0 +1,55 @@
+package net.buildism.mhk.MohawkExtractor;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Writes output files through a temporary file in the same directory that is renamed over the
+ * target once complete, so an interrupted run never leaves a truncated file behind that a later run
+ * would take for finished output.
+ */
+class OutputFiles {
+
+  interface Writer {
+    void write(Path temp) throws IOException;
+  }
+
+  static void writeAtomically(Path target, Writer writer) throws IOException {
+    Path temp = tempFile(target);
+    try {
+      writer.write(temp);
+      replace(temp, target);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /**
+   * Returns a name for a temporary file next to {@code target}, creating the directory if need be,
+   * for output that is written over a longer span and then moved into place with {@link #replace}.
+   */
+  static Path tempFile(Path target) throws IOException {
+    Path dir = target.toAbsolutePath().getParent();
+    Files.createDirectories(dir);
+    // Not Files.createTempFile, which would leave the output readable by the owner only.
+    return dir.resolve("." + target.getFileName() + "."
+        + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+  }
+
+  static void replace(Path temp, Path target) throws IOException {
+    try {
+      Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  static void writeAtomically(Path target, byte[] data) throws IOException {
+    writeAtomically(target, temp -> Files.write(temp, data));
+  }
+}
@@ -0,0 +1,207 @@
+package net.buildism.mhk.MohawkExtractor;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Extracts each archive into a single stored (uncompressed) ZIP file, {@code <archive>.zip} in the
+ * output directory, instead of one file per resource. PNGs are already deflated and movies do not
+ * compress, so entries are stored as they are; the ZIP central directory records the offset of
+ * every entry, so consumers can still seek to individual resources. Entries are named as the files
+ * would be, e.g. {@code tBMP/12.png}.
+ *
+ * <p>The whole ZIP is written through one buffered channel and renamed into place once complete,
+ * so there is no per-resource file or directory to create. Bitmaps are encoded in memory; other
+ * resources are exported by their handlers straight from the archive into the ZIP, so a movie
+ * never has to fit in the heap. Resources are decoded and encoded on
+ * {@code --threads} workers, as the {@link MemoryBudget} allows, and appended in the order they
+ * finish.
+ */
+class PackedExtractor {
+
+  private static final int BUFFER_SIZE = 1 << 20;
+
+  static void extract(List<File> archives, Options options, PngEncoder pngEncoder,
+      Metrics metrics, TextureStore textures) throws IOException {
+    ForkJoinPool pool = new ForkJoinPool(options.threads);
+    MemoryBudget budget = new MemoryBudget(options);
+    try {
+      for (File archiveFile : archives) {
+        System.out.println(archiveFile.getName());
+        File zipFile = new File(options.outputPath,
+            archiveFile.getName().replace(".mhk", "") + ".zip");
+        try (MohawkArchive archive = MohawkExtractor.openArchive(archiveFile, options)) {
+          List<MohawkArchive.Resource> resources =
+              MohawkExtractor.selectResources(archive, options);
+          long modified = archiveFile.lastModified();
+          OutputFiles.writeAtomically(zipFile.toPath(), temp -> {
+            try (FileChannel channel = FileChannel.open(temp,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                ZipOutputStream zip = new ZipOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE))) {
+              zip.setMethod(ZipOutputStream.STORED);
+              List<EntryTask> tasks = new ArrayList<>();
+              for (MohawkArchive.Resource resource : resources) {
+                tasks.add(new EntryTask(zip, resource, modified, pngEncoder, metrics, textures,
+                    budget));
+              }
+              pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                  invokeAll(tasks);
+                }
+              });
+            } catch (UncheckedIOException e) {
+              throw e.getCause();
+            }
+          });
+        }
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /** Adds one resource to the ZIP, once the {@link MemoryBudget} has room for it. */
+  private static class EntryTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final ZipOutputStream zip;
+    private final MohawkArchive.Resource resource;
+    private final long modified;
+    private final PngEncoder pngEncoder;
+    private final Metrics metrics;
+    private final TextureStore textures;
+    private final MemoryBudget budget;
+
+    EntryTask(ZipOutputStream zip, MohawkArchive.Resource resource, long modified,
+        PngEncoder pngEncoder, Metrics metrics, TextureStore textures, MemoryBudget budget) {
+      this.zip = zip;
+      this.resource = resource;
+      this.modified = modified;
+      this.pngEncoder = pngEncoder;
+      this.metrics = metrics;
+      this.textures = textures;
+      this.budget = budget;
+    }
+
+    @Override
+    protected void compute() {
+      if (!MohawkExtractor.isSupported(resource, metrics)) return;
+      long charge = budget.acquire(resource);
+      try {
+        metrics.countResource(resource);
+        if (resource.getType().equals("tBMP")) {
+          add(zip, resource, encode(resource, pngEncoder, metrics, textures), modified, metrics);
+        } else {
+          export(zip, resource, modified, metrics);
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      } finally {
+        budget.release(charge);
+      }
+    }
+  }
+
+  /** Decodes a tBMP, hands it to {@code textures} if given, and encodes it as a PNG in memory. */
+  private static byte[] encode(MohawkArchive.Resource resource, PngEncoder pngEncoder,
+      Metrics metrics, TextureStore textures) throws IOException {
+    System.out.println(resource.getType() + " " + resource.getId() + " " + resource);
+    Metrics.Timer timer = metrics.time(Metrics.Stage.DECODE, resource);
+    MohawkBitmap bitmap = MohawkBitmap.read(resource.getData());
+    timer.stop();
+    if (textures != null) {
+      textures.accept(resource, bitmap);
+    }
+    timer = metrics.time(Metrics.Stage.ENCODE, resource);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    pngEncoder.write(bitmap, out);
+    timer.stop();
+    return out.toByteArray();
+  }
+
+  private static void add(ZipOutputStream zip, MohawkArchive.Resource resource, byte[] data,
+      long modified, Metrics metrics) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    ZipEntry entry = entry(resource, crc.getValue(), data.length, modified);
+    Metrics.Timer timer = metrics.time(Metrics.Stage.WRITE, resource);
+    synchronized (zip) {
+      zip.putNextEntry(entry);
+      zip.write(data);
+      zip.closeEntry();
+    }
+    timer.stop();
+    metrics.countOutput(data.length);
+  }
+
+  /**
+   * Exports a resource with the handler for its type straight into the ZIP. A stored entry needs
+   * its size and CRC before its data, so the export runs twice: once into a channel that only
+   * checksums it, then into the entry.
+   */
+  private static void export(ZipOutputStream zip, MohawkArchive.Resource resource, long modified,
+      Metrics metrics) throws IOException {
+    ResourceHandler handler = ResourceHandlers.get(resource.getType());
+    ChecksumChannel checksum = new ChecksumChannel();
+    handler.write(resource, checksum);
+    ZipEntry entry = entry(resource, checksum.crc.getValue(), checksum.size, modified);
+    Metrics.Timer timer = metrics.time(Metrics.Stage.WRITE, resource);
+    synchronized (zip) {
+      zip.putNextEntry(entry);
+      handler.write(resource, Channels.newChannel(zip));
+      zip.closeEntry();
+    }
+    timer.stop();
+    metrics.countOutput(checksum.size);
+  }
+
+  private static ZipEntry entry(MohawkArchive.Resource resource, long crc, long size,
+      long modified) {
+    ZipEntry entry = new ZipEntry(MohawkExtractor.outputName(resource));
+    entry.setCrc(crc);
+    entry.setSize(size);
+    entry.setCompressedSize(size);
+    entry.setTime(modified);
+    return entry;
+  }
+
+  /** A channel that discards what is written to it, keeping only its CRC-32 and length. */
+  private static class ChecksumChannel implements WritableByteChannel {
+    final CRC32 crc = new CRC32();
+    long size;
+
+    @Override
+    public int write(ByteBuffer src) {
+      int length = src.remaining();
+      crc.update(src);
+      size += length;
+      return length;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
@@ -0,0 +1,126 @@
+package net.buildism.mhk.MohawkExtractor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Extracts archives on a fork-join pool. Each archive is a task that forks one subtask per
+ * resource, so idle workers steal cheap uncompressed bitmaps while others are busy with slow
+ * Riven-compressed ones. The archive index is shared read-only between the subtasks. With
+ * {@code --max-inflight-mb}, a resource subtask waits for room in the {@link MemoryBudget} before
+ * it starts.
+ */
+class ParallelExtractor {
+
+  static void extract(List<File> archives, Options options, PngEncoder pngEncoder,
+      Metrics metrics, ContentStore store, TextureStore textures) {
+    MemoryBudget budget = new MemoryBudget(options);
+    List<ArchiveTask> tasks = new ArrayList<>();
+    for (File archive : archives) {
+      tasks.add(new ArchiveTask(archive, options, pngEncoder, metrics, store, textures, budget));
+    }
+    ForkJoinPool pool = new ForkJoinPool(options.threads);
+    try {
+      pool.invoke(new RecursiveAction() {
+        @Override
+        protected void compute() {
+          invokeAll(tasks);
+        }
+      });
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private static class ArchiveTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final File archiveFile;
+    private final Options options;
+    private final PngEncoder pngEncoder;
+    private final Metrics metrics;
+    private final ContentStore store;
+    private final TextureStore textures;
+    private final MemoryBudget budget;
+
+    ArchiveTask(File archiveFile, Options options, PngEncoder pngEncoder, Metrics metrics,
+        ContentStore store, TextureStore textures, MemoryBudget budget) {
+      this.archiveFile = archiveFile;
+      this.options = options;
+      this.pngEncoder = pngEncoder;
+      this.metrics = metrics;
+      this.store = store;
+      this.textures = textures;
+      this.budget = budget;
+    }
+
+    @Override
+    protected void compute() {
+      File outputDir = MohawkExtractor.outputDir(archiveFile, options);
+      try {
+        ExtractionManifest manifest = ExtractionManifest.load(outputDir, archiveFile, options);
+        if (manifest.isArchiveUnchanged()) return;
+        boolean complete = false;
+        try (MohawkArchive archive = MohawkExtractor.openArchive(archiveFile, options)) {
+          List<ResourceTask> tasks = new ArrayList<>();
+          List<MohawkArchive.Resource> resources =
+              MohawkExtractor.selectResources(archive, options);
+          for (MohawkArchive.Resource resource : resources) {
+            tasks.add(new ResourceTask(resource, outputDir, pngEncoder, manifest, metrics, store,
+                textures, budget));
+          }
+          invokeAll(tasks);
+          complete = MohawkExtractor.isComplete(options);
+        } finally {
+          manifest.save(complete);
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  private static class ResourceTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final MohawkArchive.Resource resource;
+    private final File outputDir;
+    private final PngEncoder pngEncoder;
+    private final ExtractionManifest manifest;
+    private final Metrics metrics;
+    private final ContentStore store;
+    private final TextureStore textures;
+    private final MemoryBudget budget;
+
+    ResourceTask(MohawkArchive.Resource resource, File outputDir, PngEncoder pngEncoder,
+        ExtractionManifest manifest, Metrics metrics, ContentStore store, TextureStore textures,
+        MemoryBudget budget) {
+      this.resource = resource;
+      this.outputDir = outputDir;
+      this.pngEncoder = pngEncoder;
+      this.manifest = manifest;
+      this.metrics = metrics;
+      this.store = store;
+      this.textures = textures;
+      this.budget = budget;
+    }
+
+    @Override
+    protected void compute() {
+      long charge = budget.acquire(resource);
+      try {
+        MohawkExtractor.extractResource(resource, outputDir, pngEncoder, manifest, metrics, store,
+            textures);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      } finally {
+        budget.release(charge);
+      }
+    }
+  }
+}
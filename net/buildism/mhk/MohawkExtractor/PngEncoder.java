@@ -0,0 +1,298 @@
+package net.buildism.mhk.MohawkExtractor;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes {@link MohawkBitmap}s as PNG files without going through ImageIO. 8-bpp bitmaps are
+ * written as paletted images when {@code indexed} is set, everything else as 8-bit RGB. Deflaters
+ * are pooled, so one encoder can be shared by all bitmaps of a run and by several threads.
+ */
+public class PngEncoder {
+
+  public enum Filter { NONE, SUB, UP, AVERAGE, PAETH, ADAPTIVE }
+
+  public static final int FAST = 1;
+  public static final int BALANCED = 6;
+  public static final int MAX = 9;
+
+  private static final byte[] SIGNATURE =
+      new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+  private static final int IDAT_SIZE = 1 << 16;
+  private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+
+  private final int level;
+  private final Filter filter;
+  private final boolean indexed;
+  private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+
+  public PngEncoder(int level, Filter filter, boolean indexed) {
+    this.level = level;
+    this.filter = filter;
+    this.indexed = indexed;
+  }
+
+  /** Parses a compression level given as "fast", "balanced", "max" or a number from 0 to 9. */
+  public static int parseLevel(String value) {
+    switch (value) {
+      case "fast":
+        return FAST;
+      case "balanced":
+        return BALANCED;
+      case "max":
+        return MAX;
+      default:
+        int level = Integer.parseInt(value);
+        if (level < 0 || level > 9) {
+          throw new IllegalArgumentException("compression level out of range: " + value);
+        }
+        return level;
+    }
+  }
+
+  public void write(MohawkBitmap bitmap, Path path) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    try (OutputStream out =
+        new BufferedOutputStream(Channels.newOutputStream(channel), OUTPUT_BUFFER_SIZE)) {
+      write(bitmap, out);
+    }
+  }
+
+  public void write(MohawkBitmap bitmap, OutputStream out) throws IOException {
+    boolean paletted = indexed && bitmap.isIndexed();
+    int width = bitmap.getWidth();
+    int height = bitmap.getHeight();
+    int bytesPerPixel = paletted ? 1 : 3;
+    int rowBytes = width * bytesPerPixel;
+
+    out.write(SIGNATURE);
+    ChunkOutputStream chunk = new ChunkOutputStream(out);
+    DataOutputStream header = new DataOutputStream(chunk);
+    header.writeInt(width);
+    header.writeInt(height);
+    header.writeByte(8); // bit depth
+    header.writeByte(paletted ? 3 : 2); // color type
+    header.writeByte(0); // compression method
+    header.writeByte(0); // filter method
+    header.writeByte(0); // interlace method
+    chunk.writeChunk("IHDR");
+    if (paletted) {
+      for (int color : bitmap.getPalette()) {
+        chunk.write(color >> 16);
+        chunk.write(color >> 8);
+        chunk.write(color);
+      }
+      chunk.writeChunk("PLTE");
+    }
+
+    Deflater deflater = deflaters.poll();
+    if (deflater == null) {
+      deflater = new Deflater(level);
+    }
+    try {
+      IdatOutputStream idat = new IdatOutputStream(chunk);
+      DeflaterOutputStream compressed = new DeflaterOutputStream(idat, deflater, IDAT_SIZE);
+      Filterer filterer = new Filterer(filter, rowBytes, bytesPerPixel);
+      byte[] row = new byte[rowBytes];
+      for (int y = 0; y < height; y++) {
+        if (paletted) {
+          System.arraycopy(bitmap.getIndices(), y * bitmap.getBytesPerRow(), row, 0, width);
+        } else {
+          bitmap.getRgbRow(y, row);
+        }
+        compressed.write(filterer.filter(row), 0, rowBytes + 1);
+      }
+      compressed.finish();
+      idat.flush();
+    } finally {
+      deflater.reset();
+      deflaters.offer(deflater);
+    }
+    chunk.writeChunk("IEND");
+  }
+
+  /** Buffers the data of one chunk and writes it with its length, type and CRC. */
+  private static class ChunkOutputStream extends OutputStream {
+    private final DataOutputStream out;
+    private final CRC32 crc = new CRC32();
+    private byte[] buffer = new byte[1024];
+    private int count;
+
+    ChunkOutputStream(OutputStream out) {
+      this.out = new DataOutputStream(out);
+    }
+
+    @Override
+    public void write(int b) {
+      ensureCapacity(1);
+      buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      ensureCapacity(len);
+      System.arraycopy(b, off, buffer, count, len);
+      count += len;
+    }
+
+    int size() {
+      return count;
+    }
+
+    void writeChunk(String type) throws IOException {
+      byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+      crc.reset();
+      crc.update(typeBytes);
+      crc.update(buffer, 0, count);
+      out.writeInt(count);
+      out.write(typeBytes);
+      out.write(buffer, 0, count);
+      out.writeInt((int) crc.getValue());
+      count = 0;
+    }
+
+    private void ensureCapacity(int extra) {
+      if (count + extra > buffer.length) {
+        byte[] grown = new byte[Math.max(buffer.length * 2, count + extra)];
+        System.arraycopy(buffer, 0, grown, 0, count);
+        buffer = grown;
+      }
+    }
+  }
+
+  /** Splits the compressed image data into IDAT chunks of at most {@link #IDAT_SIZE} bytes. */
+  private static class IdatOutputStream extends OutputStream {
+    private final ChunkOutputStream chunk;
+
+    IdatOutputStream(ChunkOutputStream chunk) {
+      this.chunk = chunk;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      chunk.write(b);
+      if (chunk.size() >= IDAT_SIZE) {
+        chunk.writeChunk("IDAT");
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        int n = Math.min(len, IDAT_SIZE - chunk.size());
+        chunk.write(b, off, n);
+        off += n;
+        len -= n;
+        if (chunk.size() >= IDAT_SIZE) {
+          chunk.writeChunk("IDAT");
+        }
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (chunk.size() > 0) {
+        chunk.writeChunk("IDAT");
+      }
+    }
+  }
+
+  /** Applies a PNG filter to each row, keeping the previous row around for UP/AVERAGE/PAETH. */
+  private static class Filterer {
+    private final Filter filter;
+    private final int bytesPerPixel;
+    private final byte[] previous;
+    private final byte[][] candidates;
+
+    Filterer(Filter filter, int rowBytes, int bytesPerPixel) {
+      this.filter = filter;
+      this.bytesPerPixel = bytesPerPixel;
+      this.previous = new byte[rowBytes];
+      int count = filter == Filter.ADAPTIVE ? 5 : 1;
+      candidates = new byte[count][rowBytes + 1];
+    }
+
+    /** Returns the filter type byte followed by the filtered row. */
+    byte[] filter(byte[] row) {
+      byte[] result;
+      if (filter == Filter.ADAPTIVE) {
+        result = null;
+        long best = Long.MAX_VALUE;
+        for (int type = 0; type < 5; type++) {
+          apply(type, row, candidates[type]);
+          long sum = 0;
+          for (int i = 1; i < candidates[type].length; i++) {
+            sum += Math.abs(candidates[type][i]);
+          }
+          if (sum < best) {
+            best = sum;
+            result = candidates[type];
+          }
+        }
+      } else {
+        result = candidates[0];
+        apply(filter.ordinal(), row, result);
+      }
+      System.arraycopy(row, 0, previous, 0, row.length);
+      return result;
+    }
+
+    private void apply(int type, byte[] row, byte[] out) {
+      out[0] = (byte) type;
+      int bpp = bytesPerPixel;
+      switch (type) {
+        case 0:
+          System.arraycopy(row, 0, out, 1, row.length);
+          break;
+        case 1:
+          for (int i = 0; i < row.length; i++) {
+            int left = i >= bpp ? row[i - bpp] & 0xff : 0;
+            out[i + 1] = (byte) (row[i] - left);
+          }
+          break;
+        case 2:
+          for (int i = 0; i < row.length; i++) {
+            out[i + 1] = (byte) (row[i] - previous[i]);
+          }
+          break;
+        case 3:
+          for (int i = 0; i < row.length; i++) {
+            int left = i >= bpp ? row[i - bpp] & 0xff : 0;
+            out[i + 1] = (byte) (row[i] - ((left + (previous[i] & 0xff)) >> 1));
+          }
+          break;
+        default:
+          for (int i = 0; i < row.length; i++) {
+            int a = i >= bpp ? row[i - bpp] & 0xff : 0;
+            int b = previous[i] & 0xff;
+            int c = i >= bpp ? previous[i - bpp] & 0xff : 0;
+            out[i + 1] = (byte) (row[i] - paeth(a, b, c));
+          }
+      }
+    }
+
+    private static int paeth(int a, int b, int c) {
+      int p = a + b - c;
+      int pa = Math.abs(p - a);
+      int pb = Math.abs(p - b);
+      int pc = Math.abs(p - c);
+      if (pa <= pb && pa <= pc) {
+        return a;
+      }
+      return pb <= pc ? b : c;
+    }
+  }
+}
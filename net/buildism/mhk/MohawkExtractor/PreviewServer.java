@@ -0,0 +1,161 @@
+package net.buildism.mhk.MohawkExtractor;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves bitmaps as PNGs over HTTP on localhost, decoding them on demand:
+ *
+ * <pre>
+ *   /                         the archives
+ *   /&lt;archive&gt;/              the bitmaps of an archive
+ *   /&lt;archive&gt;/tBMP/&lt;id&gt;.png  a bitmap
+ * </pre>
+ *
+ * Decoded bitmaps and encoded PNGs share one LRU cache bounded by {@code --cache-mb}, so a PNG
+ * evicted from the cache is re-encoded without decoding the bitmap again while that is still
+ * cached. Concurrent requests for the same bitmap decode and encode it only once.
+ */
+class PreviewServer {
+
+  private final Map<String, MohawkArchive> archives = new TreeMap<>();
+  private final PngEncoder pngEncoder;
+  private final LruCache<String, Object> cache;
+
+  private PreviewServer(Options options) {
+    this.pngEncoder = options.pngEncoder();
+    this.cache = new LruCache<>(options.cacheMb * 1024L * 1024L, PreviewServer::weigh);
+  }
+
+  static void serve(List<File> archiveFiles, Options options) throws IOException {
+    PreviewServer server = new PreviewServer(options);
+    for (File archiveFile : archiveFiles) {
+      server.archives.put(archiveFile.getName().replace(".mhk", ""),
+          MohawkExtractor.openArchive(archiveFile, options));
+    }
+    HttpServer http = HttpServer.create(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), options.port), 0);
+    http.createContext("/", server::handle);
+    http.setExecutor(Executors.newFixedThreadPool(Math.max(4, options.threads)));
+    http.start();
+    System.out.println("Serving on http://localhost:" + http.getAddress().getPort() + "/");
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      if (!exchange.getRequestMethod().equals("GET")) {
+        respond(exchange, 405, "text/plain", "GET only".getBytes(StandardCharsets.UTF_8));
+        return;
+      }
+      String[] parts = exchange.getRequestURI().getPath().split("/");
+      if (parts.length <= 1) {
+        respond(exchange, 200, "text/html", listing("", archives.keySet()));
+        return;
+      }
+      MohawkArchive archive = archives.get(parts[1]);
+      if (archive == null) {
+        notFound(exchange);
+      } else if (parts.length == 2) {
+        List<String> names = new ArrayList<>();
+        for (int id : new TreeSet<>(archive.getResourceIds("tBMP"))) {
+          names.add(id + ".png");
+        }
+        respond(exchange, 200, "text/html", listing(parts[1] + "/tBMP/", names));
+      } else if (parts.length == 4 && parts[2].equals("tBMP") && parts[3].endsWith(".png")) {
+        int id;
+        try {
+          id = Integer.parseInt(parts[3].substring(0, parts[3].length() - 4));
+        } catch (NumberFormatException e) {
+          notFound(exchange);
+          return;
+        }
+        MohawkArchive.Resource resource = archive.get("tBMP", id);
+        if (resource == null) {
+          notFound(exchange);
+          return;
+        }
+        byte[] png;
+        try {
+          png = png(parts[1], resource);
+        } catch (IOException e) {
+          throw e;
+        } catch (RuntimeException e) {
+          // An unsupported or corrupt bitmap is a problem with the resource, not the server.
+          System.out.println(exchange.getRequestURI() + " " + e);
+          respond(exchange, 415, "text/plain", e.toString().getBytes(StandardCharsets.UTF_8));
+          return;
+        }
+        respond(exchange, 200, "image/png", png);
+      } else {
+        notFound(exchange);
+      }
+    } catch (Exception e) {
+      System.out.println(exchange.getRequestURI() + " " + e);
+      // If the headers already went out, e.g. when the client hung up mid-body, a second status
+      // cannot be sent and closing the exchange is all that is left.
+      if (exchange.getResponseCode() == -1) {
+        respond(exchange, 500, "text/plain", e.toString().getBytes(StandardCharsets.UTF_8));
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private byte[] png(String archiveName, MohawkArchive.Resource resource) throws Exception {
+    String key = archiveName + "/tBMP/" + resource.getId();
+    return (byte[]) cache.get("png:" + key, pngKey -> {
+      MohawkBitmap bitmap = (MohawkBitmap) cache.get(
+          "bitmap:" + key, bitmapKey -> MohawkBitmap.read(resource.getData()));
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      pngEncoder.write(bitmap, out);
+      return out.toByteArray();
+    });
+  }
+
+  /** Returns the approximate heap size of a cached PNG or bitmap. */
+  private static long weigh(Object value) {
+    if (value instanceof byte[]) {
+      return ((byte[]) value).length;
+    }
+    MohawkBitmap bitmap = (MohawkBitmap) value;
+    if (bitmap.isIndexed()) {
+      return bitmap.getIndices().length + 4L * bitmap.getPalette().length;
+    }
+    return 4L * bitmap.getWidth() * bitmap.getHeight();
+  }
+
+  private static byte[] listing(String prefix, Iterable<String> names) {
+    StringBuilder html = new StringBuilder("<!DOCTYPE html><ul>\n");
+    for (String name : names) {
+      html.append("<li><a href=\"/").append(prefix).append(name).append(prefix.isEmpty() ? "/" : "")
+          .append("\">").append(name).append("</a>\n");
+    }
+    return html.append("</ul>\n").toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static void notFound(HttpExchange exchange) throws IOException {
+    respond(exchange, 404, "text/plain", "not found".getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static void respond(HttpExchange exchange, int status, String contentType, byte[] body)
+      throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    exchange.sendResponseHeaders(status, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+}
@@ -0,0 +1,95 @@
+package net.buildism.mhk.MohawkExtractor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Selects resources by type, ID and name, as given by {@code --type tBMP,tMOV}, {@code --ids
+ * 1-200,305} and {@code --name 'jspit*'}. Criteria that were not given match everything.
+ */
+class ResourceFilter {
+
+  private final Set<String> types;
+  private final int[] ranges;
+  private final Pattern name;
+
+  ResourceFilter(String types, String ids, String name) {
+    this.types = types == null ? null : new HashSet<>(Arrays.asList(types.split(",")));
+    this.ranges = ids == null ? null : parseRanges(ids);
+    this.name = name == null ? null : glob(name);
+  }
+
+  /** Returns true if no criteria were given. */
+  boolean isEverything() {
+    return types == null && ranges == null && name == null;
+  }
+
+  boolean matchesType(String type) {
+    return types == null || types.contains(type);
+  }
+
+  boolean matches(MohawkArchive.Resource resource) {
+    if (!matchesType(resource.getType())) {
+      return false;
+    }
+    if (ranges != null && !inRanges(resource.getId())) {
+      return false;
+    }
+    return name == null || resource.getName() != null && name.matcher(resource.getName()).matches();
+  }
+
+  private boolean inRanges(int id) {
+    for (int i = 0; i < ranges.length; i += 2) {
+      if (id >= ranges[i] && id <= ranges[i + 1]) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Parses "1-200,305" into pairs of inclusive bounds. */
+  private static int[] parseRanges(String ids) {
+    List<Integer> bounds = new ArrayList<>();
+    for (String range : ids.split(",")) {
+      int dash = range.indexOf('-');
+      if (dash < 0) {
+        int id = Integer.parseInt(range.trim());
+        bounds.add(id);
+        bounds.add(id);
+      } else {
+        int first = Integer.parseInt(range.substring(0, dash).trim());
+        int last = Integer.parseInt(range.substring(dash + 1).trim());
+        if (last < first) {
+          throw new IllegalArgumentException("empty ID range: " + range);
+        }
+        bounds.add(first);
+        bounds.add(last);
+      }
+    }
+    return bounds.stream().mapToInt(Integer::intValue).toArray();
+  }
+
+  /** Turns a glob with * and ? wildcards into a regular expression. */
+  private static Pattern glob(String glob) {
+    StringBuilder regex = new StringBuilder();
+    int literal = 0;
+    for (int i = 0; i < glob.length(); i++) {
+      char c = glob.charAt(i);
+      if (c == '*' || c == '?') {
+        if (i > literal) {
+          regex.append(Pattern.quote(glob.substring(literal, i)));
+        }
+        regex.append(c == '*' ? ".*" : ".");
+        literal = i + 1;
+      }
+    }
+    if (glob.length() > literal) {
+      regex.append(Pattern.quote(glob.substring(literal)));
+    }
+    return Pattern.compile(regex.toString(), Pattern.DOTALL);
+  }
+}
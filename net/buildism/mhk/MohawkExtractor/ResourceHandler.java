@@ -0,0 +1,25 @@
+package net.buildism.mhk.MohawkExtractor;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Exports the resources of one type to files. Bitmaps are always decoded to PNGs by the extractor
+ * itself; every other type is written by the handler registered for its 4-character type tag, or
+ * copied out unchanged if there is none.
+ *
+ * <p>Besides the built-in handlers, implementations listed in
+ * {@code META-INF/services/net.buildism.mhk.MohawkExtractor.ResourceHandler} on the class path are
+ * loaded with {@link java.util.ServiceLoader} and take precedence. Handlers must be thread-safe.
+ */
+public interface ResourceHandler {
+
+  /** Returns the type tag this handler exports, e.g. {@code tWAV}. */
+  String getType();
+
+  /** Returns the extension, including the dot, of the file {@code resource} is exported to. */
+  String getExtension(MohawkArchive.Resource resource);
+
+  /** Writes the exported form of {@code resource} to {@code out}. */
+  void write(MohawkArchive.Resource resource, WritableByteChannel out) throws IOException;
+}
@@ -0,0 +1,83 @@
+package net.buildism.mhk.MohawkExtractor;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+/** The {@link ResourceHandler}s by type tag: the built-in ones, then any found as services. */
+class ResourceHandlers {
+
+  private static final ResourceHandler RAW = new RawHandler();
+  private static final Map<String, ResourceHandler> HANDLERS = new HashMap<>();
+
+  static {
+    register(new MovieHandler());
+    register(new WaveHandler());
+    for (ResourceHandler handler : ServiceLoader.load(ResourceHandler.class)) {
+      register(handler);
+    }
+  }
+
+  private static void register(ResourceHandler handler) {
+    HANDLERS.put(handler.getType(), handler);
+  }
+
+  /** Returns the handler for {@code type}, or one that copies the resource as it is. */
+  static ResourceHandler get(String type) {
+    return HANDLERS.getOrDefault(type, RAW);
+  }
+
+  /** Exports {@code resource} to a new file at {@code path} with the handler for its type. */
+  static void write(MohawkArchive.Resource resource, Path path) throws IOException {
+    try (FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.WRITE)) {
+      get(resource.getType()).write(resource, out);
+    }
+  }
+
+  /**
+   * Copies the resource's byte range from the archive file unchanged, with
+   * {@link FileChannel#transferTo} so the data does not pass through the heap.
+   */
+  private static class RawHandler implements ResourceHandler {
+    @Override
+    public String getType() {
+      return null;
+    }
+
+    @Override
+    public String getExtension(MohawkArchive.Resource resource) {
+      return ".bin";
+    }
+
+    @Override
+    public void write(MohawkArchive.Resource resource, WritableByteChannel out)
+        throws IOException {
+      resource.transferTo(0, resource.getSize(), out);
+    }
+  }
+
+  /** Writes tMOV resources as QuickTime movies with their chunk offsets rebased. */
+  private static class MovieHandler implements ResourceHandler {
+    @Override
+    public String getType() {
+      return "tMOV";
+    }
+
+    @Override
+    public String getExtension(MohawkArchive.Resource resource) {
+      return ".mov";
+    }
+
+    @Override
+    public void write(MohawkArchive.Resource resource, WritableByteChannel out)
+        throws IOException {
+      MohawkMovie.write(resource, out);
+    }
+  }
+}
@@ -0,0 +1,270 @@
+package net.buildism.mhk.MohawkExtractor;
+
+/**
+ * Decompresses the pixel data of Riven-compressed tBMP resources into one palette index byte per
+ * pixel. See http://insidethelink.ortiche.net/wiki/index.php/Riven_Bitmap_Compression.
+ *
+ * <p>The stream is a sequence of commands, one of which starts a run of subcommands. Everything a
+ * subcommand needs to know about its byte value (what it does, the m or x argument packed into its
+ * low bits, how many duplets it copies and whether a pixel byte follows) is looked up in tables
+ * built once, instead of being decoded from the bits each time.
+ */
+class RivenDecoder {
+
+  private static final int INVALID = 0;
+  // 0000mmmm: repeat duplet at relative position -m duplets.
+  private static final int DUPLET_BACK = 1;
+  // 0x10 p: repeat last duplet, but change second pixel to p.
+  private static final int SECOND_ABSOLUTE = 2;
+  // 0001mmmm: first pixel of last duplet, then pixel at -m relative to the second pixel.
+  private static final int SECOND_BACK = 3;
+  // 0010xxxx, 0011xxxx, 1000xxxx, 1100xxxx: repeat last duplet adding x to one of its pixels.
+  private static final int ADD_FIRST = 4;
+  private static final int ADD_SECOND = 5;
+  // 0x40 p: repeat last duplet, but change first pixel to p.
+  private static final int FIRST_ABSOLUTE = 6;
+  // 0100mmmm: pixel at relative position -m, then second pixel of last duplet.
+  private static final int FIRST_BACK = 7;
+  // 0x50 p1 p2: two absolute pixel values.
+  private static final int BOTH_ABSOLUTE = 8;
+  // 01010mmm p: pixel at relative position -m, then p.
+  private static final int BACK_THEN_ABSOLUTE = 9;
+  // 01011mmm p: p, then pixel at -m relative to the second pixel.
+  private static final int ABSOLUTE_THEN_BACK = 10;
+  // 0110xxxx p, 0111xxxx p: p, then second pixel of last duplet + x.
+  private static final int ABSOLUTE_THEN_ADD = 11;
+  // 1001xxxx p, 1101xxxx p: first pixel of last duplet + x, then p.
+  private static final int ADD_THEN_ABSOLUTE = 12;
+  // 0xa0, 0xb0, 0xe0 xxxxyyyy: repeat last duplet adding +-x and +-y to its pixels.
+  private static final int ADD_BOTH = 13;
+  // 0xf0, 0xff xxxxyyyy: repeat last duplet subtracting x and y, x getting the high nibble of sub.
+  private static final int SUBTRACT_BOTH = 14;
+  // 1x1xxxmm mmmmmmmm (p): repeat n duplets from relative position -m pixels.
+  private static final int COPY = 15;
+  // 0xfc nnnnnrmm mmmmmmmm (p): repeat n+2 duplets from relative position -m pixels.
+  private static final int LONG_COPY = 16;
+
+  private static final byte[] OP = new byte[256];
+  /** The m or x argument in the low bits of the subcommand, negated where it is subtracted. */
+  private static final int[] ARG = new int[256];
+  /** For ADD_BOTH, the signs applied to the x and y nibbles of the following byte. */
+  private static final int[] SIGN_X = new int[256];
+  private static final int[] SIGN_Y = new int[256];
+  /** For COPY, the number of duplets copied. */
+  private static final int[] LENGTH = new int[256];
+  /** For COPY, whether a pixel byte follows that replaces the last copied pixel. */
+  private static final boolean[] LITERAL = new boolean[256];
+
+  static {
+    // Subcommand 0x00 is left invalid.
+    for (int sub = 1; sub < 256; sub++) {
+      int low = sub & 0x0f;
+      if (sub <= 0x0f) {
+        define(sub, DUPLET_BACK, low);
+      } else if (sub == 0x10) {
+        define(sub, SECOND_ABSOLUTE, 0);
+      } else if (sub <= 0x1f) {
+        define(sub, SECOND_BACK, low);
+      } else if (sub <= 0x2f) {
+        define(sub, ADD_SECOND, low);
+      } else if (sub <= 0x3f) {
+        define(sub, ADD_SECOND, -low);
+      } else if (sub == 0x40) {
+        define(sub, FIRST_ABSOLUTE, 0);
+      } else if (sub <= 0x4f) {
+        define(sub, FIRST_BACK, low);
+      } else if (sub == 0x50) {
+        define(sub, BOTH_ABSOLUTE, 0);
+      } else if (sub <= 0x57) {
+        define(sub, BACK_THEN_ABSOLUTE, sub & 0x07);
+      } else if (sub >= 0x59 && sub <= 0x5f) {
+        define(sub, ABSOLUTE_THEN_BACK, sub & 0x07);
+      } else if (sub >= 0x60 && sub <= 0x6f) {
+        define(sub, ABSOLUTE_THEN_ADD, low);
+      } else if (sub >= 0x70 && sub <= 0x7f) {
+        define(sub, ABSOLUTE_THEN_ADD, -low);
+      } else if (sub >= 0x80 && sub <= 0x8f) {
+        define(sub, ADD_FIRST, low);
+      } else if (sub >= 0x90 && sub <= 0x9f) {
+        define(sub, ADD_THEN_ABSOLUTE, low);
+      } else if (sub >= 0xc0 && sub <= 0xcf) {
+        define(sub, ADD_FIRST, -low);
+      } else if (sub >= 0xd0 && sub <= 0xdf) {
+        define(sub, ADD_THEN_ABSOLUTE, -low);
+      } else if (sub == 0xa0 || sub == 0xb0 || sub == 0xe0) {
+        define(sub, ADD_BOTH, 0);
+        SIGN_X[sub] = sub == 0xe0 ? -1 : 1;
+        SIGN_Y[sub] = sub == 0xb0 ? -1 : 1;
+      } else if (sub == 0xf0 || sub == 0xff) {
+        define(sub, SUBTRACT_BOTH, low << 4);
+      } else if (sub == 0xfc) {
+        define(sub, LONG_COPY, 0);
+      }
+    }
+    defineCopy(0xa4, 2, true);
+    defineCopy(0xa8, 2, false);
+    defineCopy(0xac, 3, true);
+    defineCopy(0xb4, 3, false);
+    defineCopy(0xb8, 4, true);
+    defineCopy(0xbc, 4, false);
+    defineCopy(0xe4, 5, true);
+    defineCopy(0xe8, 5, false);
+    defineCopy(0xec, 6, true);
+    defineCopy(0xf4, 6, false);
+    defineCopy(0xf8, 7, true);
+  }
+
+  private static void define(int sub, int op, int arg) {
+    OP[sub] = (byte) op;
+    ARG[sub] = arg;
+  }
+
+  /** Defines the four subcommands starting at {@code first}, whose low two bits are offset bits. */
+  private static void defineCopy(int first, int length, boolean literal) {
+    for (int sub = first; sub < first + 4; sub++) {
+      define(sub, COPY, (sub & 0b11) << 8);
+      LENGTH[sub] = length;
+      LITERAL[sub] = literal;
+    }
+  }
+
+  /** Decompresses {@code length} bytes of {@code data} starting at {@code offset}. */
+  static byte[] decompress(byte[] data, int offset, int length, int bytesPerRow, int height) {
+    byte[] image = new byte[bytesPerRow * height];
+    int end = offset + length;
+    int p = offset;
+    int q = 0;
+    while (p < end) {
+      int cmd = data[p++] & 0xff;
+      if (cmd == 0) {
+        // End of stream.
+        break;
+      } else if (cmd <= 0x3f) {
+        // n pixel duplets follow as direct palette indices.
+        System.arraycopy(data, p, image, q, 2 * cmd);
+        p += 2 * cmd;
+        q += 2 * cmd;
+      } else if (cmd <= 0x7f) {
+        // Repeat last 2 pixels n times.
+        q = repeat(image, q, 2, cmd & 0x3f);
+      } else if (cmd <= 0xbf) {
+        // Repeat last 4 pixels n times.
+        q = repeat(image, q, 4, cmd & 0x3f);
+      } else {
+        for (int i = cmd & 0x3f; i > 0; i--) {
+          int sub = data[p++] & 0xff;
+          int arg = ARG[sub];
+          switch (OP[sub]) {
+            case DUPLET_BACK:
+              image[q] = image[q - 2 * arg];
+              image[q + 1] = image[q + 1 - 2 * arg];
+              break;
+            case SECOND_ABSOLUTE:
+              image[q] = image[q - 2];
+              image[q + 1] = data[p++];
+              break;
+            case SECOND_BACK:
+              image[q] = image[q - 2];
+              image[q + 1] = image[q + 1 - arg];
+              break;
+            case ADD_FIRST:
+              image[q] = (byte) (image[q - 2] + arg);
+              image[q + 1] = image[q - 1];
+              break;
+            case ADD_SECOND:
+              image[q] = image[q - 2];
+              image[q + 1] = (byte) (image[q - 1] + arg);
+              break;
+            case FIRST_ABSOLUTE:
+              image[q] = data[p++];
+              image[q + 1] = image[q - 1];
+              break;
+            case FIRST_BACK:
+              image[q] = image[q - arg];
+              image[q + 1] = image[q - 1];
+              break;
+            case BOTH_ABSOLUTE:
+              image[q] = data[p++];
+              image[q + 1] = data[p++];
+              break;
+            case BACK_THEN_ABSOLUTE:
+              image[q] = image[q - arg];
+              image[q + 1] = data[p++];
+              break;
+            case ABSOLUTE_THEN_BACK:
+              image[q] = data[p++];
+              image[q + 1] = image[q + 1 - arg];
+              break;
+            case ABSOLUTE_THEN_ADD:
+              image[q] = data[p++];
+              image[q + 1] = (byte) (image[q - 1] + arg);
+              break;
+            case ADD_THEN_ABSOLUTE:
+              image[q] = (byte) (image[q - 2] + arg);
+              image[q + 1] = data[p++];
+              break;
+            case ADD_BOTH: {
+              int xy = data[p++] & 0xff;
+              image[q] = (byte) (image[q - 2] + SIGN_X[sub] * (xy >> 4));
+              image[q + 1] = (byte) (image[q - 1] + SIGN_Y[sub] * (xy & 0x0f));
+              break;
+            }
+            case SUBTRACT_BOTH: {
+              int xy = data[p++] & 0xff;
+              image[q] = (byte) (image[q - 2] - (arg | (xy >> 4)));
+              image[q + 1] = (byte) (image[q - 1] - (xy & 0x0f));
+              break;
+            }
+            case COPY: {
+              int m = arg | (data[p++] & 0xff);
+              int n = 2 * LENGTH[sub];
+              copy(image, q - m, q, n);
+              q += n;
+              if (LITERAL[sub]) {
+                image[q - 1] = data[p++];
+              }
+              continue;
+            }
+            case LONG_COPY: {
+              int nrm = data[p] & 0xff;
+              int m = ((nrm & 0b11) << 8) | (data[p + 1] & 0xff);
+              p += 2;
+              int n = 2 * ((nrm >> 3) + 2);
+              copy(image, q - m, q, n);
+              q += n;
+              if ((nrm & 0b100) == 0) {
+                image[q - 1] = data[p++];
+              }
+              continue;
+            }
+            default:
+              throw new RuntimeException("subcommand: " + sub);
+          }
+          q += 2;
+        }
+      }
+    }
+    return image;
+  }
+
+  /** Repeats the {@code size} pixels before {@code q} {@code count} times. */
+  private static int repeat(byte[] image, int q, int size, int count) {
+    int from = q - size;
+    for (int i = 0; i < count; i++) {
+      System.arraycopy(image, from, image, q, size);
+      q += size;
+    }
+    return q;
+  }
+
+  /** Copies a back-reference, in bulk when source and destination do not overlap. */
+  private static void copy(byte[] image, int from, int to, int length) {
+    if (to - from >= length) {
+      System.arraycopy(image, from, image, to, length);
+    } else {
+      for (int i = 0; i < length; i++) {
+        image[to + i] = image[from + i];
+      }
+    }
+  }
+}
@@ -0,0 +1,340 @@
+package net.buildism.mhk.MohawkExtractor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Writes the decoded bitmaps of each archive into one file, {@code <archive>.tex} in the output
+ * directory, laid out so that a game engine can map it and hand pixel data straight to the renderer.
+ * All values are little-endian:
+ *
+ * <pre>
+ *   "MHKT" version:u16 flags:u16 count:u32 reserved:u32 archiveSize:u64 archiveModified:u64
+ *   count x (id:u16 format:u8 reserved:u8 width:u16 height:u16 nameOffset:u32 nameLength:u16
+ *            reserved:u16 dataOffset:u64 dataLength:u64 paletteOffset:u64)
+ *   names, UTF-8
+ *   pixel data and palettes, each starting on a 64-byte boundary
+ * </pre>
+ *
+ * 8-bpp bitmaps are stored as one palette index per pixel with a palette of 256 RGBA entries, and
+ * 24-bpp bitmaps as RGBA; rows are tightly packed in both. Resources without a name have a name
+ * offset of 0, and RGBA bitmaps a palette offset of 0. Flag bit 0 marks a store holding every
+ * bitmap of the archive; such a store is not rewritten while the archive's size and modification
+ * time are unchanged.
+ *
+ * <p>A store is laid out from the tBMP headers as soon as extraction hands it the first decoded
+ * bitmap of its archive, and each bitmap extraction decodes is then written straight to its slot.
+ * {@link #write} afterwards decodes only what extraction did not, such as bitmaps skipped as
+ * already extracted or as duplicates under {@code --dedup}, and moves the finished stores into
+ * place.
+ */
+class TextureStore implements Closeable {
+
+  static final int INDEXED8 = 1;
+  static final int RGBA8 = 2;
+
+  private static final int MAGIC = 0x544b484d; // "MHKT" read as a little-endian int
+  private static final int VERSION = 1;
+  private static final int COMPLETE = 1;
+  private static final int HEADER_SIZE = 32;
+  private static final int ENTRY_SIZE = 40;
+  private static final int ALIGNMENT = 64;
+  private static final int PALETTE_SIZE = 256 * 4;
+
+  private final Options options;
+  private final Metrics metrics;
+  // The stores being written, by archive path; null for an archive whose store is current.
+  private final Map<Path, Slots> stores = new HashMap<>();
+
+  TextureStore(Options options, Metrics metrics) {
+    this.options = options;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Writes a bitmap decoded during extraction to its slot in its archive's store. Safe to call from
+   * several threads at once.
+   */
+  void accept(MohawkArchive.Resource resource, MohawkBitmap bitmap) throws IOException {
+    Slots slots = slots(resource.getArchive());
+    Entry entry = slots == null ? null : slots.entries.get(resource.getId());
+    if (entry != null && entry.written.compareAndSet(false, true)) {
+      Metrics.Timer timer = metrics.time(Metrics.Stage.TEXTURE, resource);
+      writePixels(slots.channel, entry, bitmap);
+      timer.stop();
+    }
+  }
+
+  /**
+   * Completes the store of each archive, decoding the bitmaps that were not handed to
+   * {@link #accept}, and moves it into place.
+   */
+  void write(List<File> archives) throws IOException {
+    ForkJoinPool pool = new ForkJoinPool(options.threads);
+    MemoryBudget budget = new MemoryBudget(options);
+    try {
+      for (File archiveFile : archives) {
+        try (MohawkArchive archive = MohawkExtractor.openArchive(archiveFile, options)) {
+          Slots slots = slots(archive);
+          if (slots == null) continue;
+          System.out.println(slots.storeFile.getName());
+          List<FillTask> tasks = new ArrayList<>();
+          for (Entry entry : slots.entries.values()) {
+            if (!entry.written.get()) {
+              tasks.add(new FillTask(slots.channel, entry, archive.get("tBMP", entry.id),
+                  budget, metrics));
+            }
+          }
+          pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+              invokeAll(tasks);
+            }
+          });
+          metrics.countOutput(slots.channel.size());
+          slots.channel.close();
+          OutputFiles.replace(slots.temp, slots.storeFile.toPath());
+          synchronized (this) {
+            stores.put(archive.getPath(), null);
+          }
+        } catch (UncheckedIOException e) {
+          throw e.getCause();
+        }
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /** Discards the stores that were started but not completed by {@link #write}. */
+  @Override
+  public synchronized void close() throws IOException {
+    for (Slots slots : stores.values()) {
+      if (slots != null) {
+        slots.channel.close();
+        Files.deleteIfExists(slots.temp);
+      }
+    }
+    stores.clear();
+  }
+
+  /** Returns the store being written for {@code archive}, starting it if need be. */
+  private synchronized Slots slots(MohawkArchive archive) throws IOException {
+    Path path = archive.getPath();
+    if (!stores.containsKey(path)) {
+      stores.put(path, open(archive));
+    }
+    return stores.get(path);
+  }
+
+  private static boolean isCurrent(Path storePath, long archiveSize, long archiveModified)
+      throws IOException {
+    try (FileChannel channel = FileChannel.open(storePath, StandardOpenOption.READ)) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      channel.read(header, 0);
+      return header.getInt(0) == MAGIC && header.getShort(4) == VERSION
+          && (header.getShort(6) & COMPLETE) != 0 && header.getLong(16) == archiveSize
+          && header.getLong(24) == archiveModified;
+    } catch (NoSuchFileException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Lays out the store of {@code archive} and writes its table and names to a temporary file, or
+   * returns null if the store is current.
+   */
+  private Slots open(MohawkArchive archive) throws IOException {
+    File archiveFile = archive.getPath().toFile();
+    File storeFile = new File(options.outputPath,
+        archiveFile.getName().replace(".mhk", "") + ".tex");
+    long archiveSize = archiveFile.length();
+    long archiveModified = archiveFile.lastModified();
+    if (isCurrent(storeFile.toPath(), archiveSize, archiveModified)) {
+      return null;
+    }
+    // Everything is laid out from the tBMP headers first, so the bitmaps can then be decoded in
+    // any order and written straight to their slots.
+    List<Entry> entries = new ArrayList<>();
+    if (options.filter.matchesType("tBMP")) {
+      for (MohawkArchive.Resource resource : MohawkExtractor.selectResources(archive, options)) {
+        if (!resource.getType().equals("tBMP") || resource.getSize() < 8) continue;
+        MohawkBitmap.Header header = resource.getBitmapHeader();
+        if (MohawkBitmap.isSupported(header)) {
+          entries.add(new Entry(resource, header.getBitsPerPixel() == 8 ? INDEXED8 : RGBA8));
+        }
+      }
+    }
+    ByteBuffer table = ByteBuffer.allocate(HEADER_SIZE + entries.size() * ENTRY_SIZE)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    long position = table.capacity();
+    for (Entry entry : entries) {
+      entry.nameOffset = entry.name.length > 0 ? position : 0;
+      position += entry.name.length;
+    }
+    ByteBuffer names = ByteBuffer.allocate((int) (position - table.capacity()));
+    for (Entry entry : entries) {
+      names.put(entry.name);
+      if (entry.format == INDEXED8) {
+        position = align(position);
+        entry.paletteOffset = position;
+        position += PALETTE_SIZE;
+      }
+      position = align(position);
+      entry.dataOffset = position;
+      position += entry.dataLength;
+    }
+
+    table.putInt(MAGIC).putShort((short) VERSION)
+        .putShort((short) (options.filter.isEverything() ? COMPLETE : 0))
+        .putInt(entries.size()).putInt(0).putLong(archiveSize).putLong(archiveModified);
+    for (Entry entry : entries) {
+      table.putShort((short) entry.id).put((byte) entry.format).put((byte) 0)
+          .putShort((short) entry.width).putShort((short) entry.height)
+          .putInt((int) entry.nameOffset).putShort((short) entry.name.length).putShort((short) 0)
+          .putLong(entry.dataOffset).putLong(entry.dataLength).putLong(entry.paletteOffset);
+    }
+
+    Slots slots = new Slots(storeFile, OutputFiles.tempFile(storeFile.toPath()));
+    slots.channel = FileChannel.open(slots.temp,
+        StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    try {
+      writeFully(slots.channel, table.flip(), 0);
+      writeFully(slots.channel, names.flip(), table.capacity());
+    } catch (IOException e) {
+      slots.channel.close();
+      Files.deleteIfExists(slots.temp);
+      throw e;
+    }
+    for (Entry entry : entries) {
+      slots.entries.put(entry.id, entry);
+    }
+    return slots;
+  }
+
+  private static void writePixels(FileChannel channel, Entry entry, MohawkBitmap bitmap)
+      throws IOException {
+    ByteBuffer pixels = ByteBuffer.allocate((int) entry.dataLength);
+    if (entry.format == INDEXED8) {
+      ByteBuffer palette = ByteBuffer.allocate(PALETTE_SIZE).order(ByteOrder.BIG_ENDIAN);
+      for (int color : bitmap.getPalette()) {
+        palette.putInt(color << 8 | 0xff);
+      }
+      writeFully(channel, palette.clear(), entry.paletteOffset);
+      byte[] indices = bitmap.getIndices();
+      for (int y = 0; y < entry.height; y++) {
+        pixels.put(indices, y * bitmap.getBytesPerRow(),
+            Math.min(entry.width, bitmap.getBytesPerRow()));
+        pixels.position((y + 1) * entry.width);
+      }
+    } else {
+      byte[] row = new byte[entry.width * 3];
+      for (int y = 0; y < entry.height; y++) {
+        bitmap.getRgbRow(y, row);
+        for (int x = 0; x < row.length; x += 3) {
+          pixels.put(row, x, 3).put((byte) 0xff);
+        }
+      }
+    }
+    writeFully(channel, pixels.clear(), entry.dataOffset);
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer data, long position)
+      throws IOException {
+    while (data.hasRemaining()) {
+      position += channel.write(data, position);
+    }
+  }
+
+  private static long align(long position) {
+    return (position + ALIGNMENT - 1) & -ALIGNMENT;
+  }
+
+  /** A store being written: its temporary file and its entries by resource ID. */
+  private static class Slots {
+    final File storeFile;
+    final Path temp;
+    final Map<Integer, Entry> entries = new HashMap<>();
+    FileChannel channel;
+
+    Slots(File storeFile, Path temp) {
+      this.storeFile = storeFile;
+      this.temp = temp;
+    }
+  }
+
+  /** Decodes a bitmap that extraction did not and writes it to its slot. */
+  private static class FillTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final FileChannel channel;
+    private final Entry entry;
+    private final MohawkArchive.Resource resource;
+    private final MemoryBudget budget;
+    private final Metrics metrics;
+
+    FillTask(FileChannel channel, Entry entry, MohawkArchive.Resource resource,
+        MemoryBudget budget, Metrics metrics) {
+      this.channel = channel;
+      this.entry = entry;
+      this.resource = resource;
+      this.budget = budget;
+      this.metrics = metrics;
+    }
+
+    @Override
+    protected void compute() {
+      long charge = budget.acquire(resource);
+      try {
+        Metrics.Timer timer = metrics.time(Metrics.Stage.TEXTURE, resource);
+        writePixels(channel, entry, MohawkBitmap.read(resource.getData()));
+        timer.stop();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      } finally {
+        budget.release(charge);
+      }
+    }
+  }
+
+  private static class Entry {
+    final int id;
+    final int format;
+    final int width;
+    final int height;
+    final byte[] name;
+    final long dataLength;
+    final AtomicBoolean written = new AtomicBoolean();
+    long nameOffset;
+    long dataOffset;
+    long paletteOffset;
+
+    Entry(MohawkArchive.Resource resource, int format) {
+      MohawkBitmap.Header header = resource.getBitmapHeader();
+      this.id = resource.getId();
+      this.format = format;
+      this.width = header.getWidth();
+      this.height = header.getHeight();
+      this.name = resource.getName() == null
+          ? new byte[0] : resource.getName().getBytes(StandardCharsets.UTF_8);
+      this.dataLength = (long) width * height * (format == INDEXED8 ? 1 : 4);
+    }
+  }
+}
@@ -0,0 +1,158 @@
+package net.buildism.mhk.MohawkExtractor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Exports tWAV resources as WAV files. A tWAV is an MHWK/WAVE container whose Data chunk starts
+ * with a 20-byte header (sample rate, sample count, bits per sample, channels, encoding and loop
+ * points) followed by the samples. Raw 8-bit PCM is wrapped in a WAV header and copied straight
+ * from the archive; IMA ADPCM, which is what Riven uses, is decoded to 16-bit PCM; MPEG-2 audio is
+ * written out as a bare .mp2 stream.
+ */
+class WaveHandler implements ResourceHandler {
+
+  private static final int MHWK = 0x4d48574b;
+  private static final int WAVE = 0x57415645;
+  private static final int DATA = 0x44617461;
+  private static final int DATA_HEADER_SIZE = 20;
+
+  private static final int RAW = 0;
+  private static final int ADPCM = 1;
+  private static final int MPEG2 = 2;
+
+  private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+
+  private static final int[] STEP_SIZES = {7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25,
+      28, 31, 34, 37, 41, 45, 50, 55, 60, 66, 73, 80, 88, 97, 107, 118, 130, 143, 157, 173, 190,
+      209, 230, 253, 279, 307, 337, 371, 408, 449, 494, 544, 598, 658, 724, 796, 876, 963, 1060,
+      1166, 1282, 1411, 1552, 1707, 1878, 2066, 2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428,
+      4871, 5358, 5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899, 15289, 16818,
+      18500, 20350, 22385, 24623, 27086, 29794, 32767};
+  private static final int[] INDEX_STEPS = {-1, -1, -1, -1, 2, 4, 6, 8};
+
+  @Override
+  public String getType() {
+    return "tWAV";
+  }
+
+  @Override
+  public String getExtension(MohawkArchive.Resource resource) {
+    Sound sound = Sound.find(resource.getData());
+    if (!isConvertible(sound)) {
+      return ".bin";
+    }
+    return sound.encoding == MPEG2 ? ".mp2" : ".wav";
+  }
+
+  @Override
+  public void write(MohawkArchive.Resource resource, WritableByteChannel out) throws IOException {
+    Sound sound = Sound.find(resource.getData());
+    if (!isConvertible(sound)) {
+      System.out.println("tWAV " + resource.getId() + " " + resource + " copied as it is");
+      resource.transferTo(0, resource.getSize(), out);
+    } else if (sound.encoding == MPEG2) {
+      resource.transferTo(sound.offset, sound.length, out);
+    } else if (sound.encoding == RAW) {
+      writeFully(out, header(sound, 8, sound.length));
+      resource.transferTo(sound.offset, sound.length, out);
+    } else {
+      // Two samples per byte, high nibble first, alternating between channels in stereo.
+      writeFully(out, header(sound, 16, sound.length * 4L));
+      ByteBuffer in = resource.getData();
+      in.position(sound.offset).limit(sound.offset + sound.length);
+      ByteBuffer pcm = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      int[] predictor = new int[2];
+      int[] index = new int[2];
+      int right = sound.channels == 2 ? 1 : 0;
+      while (in.hasRemaining()) {
+        int b = in.get();
+        pcm.putShort(decode(b >> 4 & 0xf, predictor, index, 0));
+        pcm.putShort(decode(b & 0xf, predictor, index, right));
+        if (!pcm.hasRemaining()) {
+          writeFully(out, pcm.flip());
+          pcm.clear();
+        }
+      }
+      writeFully(out, pcm.flip());
+    }
+  }
+
+  private static boolean isConvertible(Sound sound) {
+    return sound != null && (sound.channels == 1 || sound.channels == 2)
+        && (sound.encoding == RAW && sound.bitsPerSample == 8
+        || sound.encoding == ADPCM || sound.encoding == MPEG2);
+  }
+
+  private static short decode(int code, int[] predictor, int[] index, int channel) {
+    int step = STEP_SIZES[index[channel]];
+    int difference = (2 * (code & 7) + 1) * step / 8;
+    int sample = predictor[channel] + ((code & 8) != 0 ? -difference : difference);
+    predictor[channel] = Math.max(-32768, Math.min(32767, sample));
+    index[channel] = Math.max(0, Math.min(88, index[channel] + INDEX_STEPS[code & 7]));
+    return (short) predictor[channel];
+  }
+
+  /** Returns a 44-byte RIFF/WAVE header for PCM data of {@code length} bytes. */
+  private static ByteBuffer header(Sound sound, int bitsPerSample, long length) {
+    int blockAlign = sound.channels * bitsPerSample / 8;
+    ByteBuffer header = ByteBuffer.allocate(44).order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(0x46464952).putInt((int) (36 + length)).putInt(0x45564157); // RIFF, WAVE
+    header.putInt(0x20746d66).putInt(16).putShort((short) 1) // fmt, PCM
+        .putShort((short) sound.channels).putInt(sound.sampleRate)
+        .putInt(sound.sampleRate * blockAlign).putShort((short) blockAlign)
+        .putShort((short) bitsPerSample);
+    header.putInt(0x61746164).putInt((int) length); // data
+    return header.flip();
+  }
+
+  private static void writeFully(WritableByteChannel out, ByteBuffer data) throws IOException {
+    while (data.hasRemaining()) {
+      out.write(data);
+    }
+  }
+
+  /** The Data chunk of a tWAV resource. */
+  private static class Sound {
+    int sampleRate;
+    int bitsPerSample;
+    int channels;
+    int encoding;
+    /** Where the samples start in the resource, and how many bytes of them there are. */
+    int offset;
+    int length;
+
+    /** Finds the Data chunk of a tWAV resource, or returns null if it is not one. */
+    static Sound find(ByteBuffer bb) {
+      if (bb.remaining() < 12 || bb.getInt(0) != MHWK || bb.getInt(8) != WAVE) {
+        return null;
+      }
+      int position = 12;
+      while (position + 8 <= bb.limit()) {
+        int tag = bb.getInt(position);
+        int size = bb.getInt(position + 4);
+        if (tag == DATA) {
+          if (size < DATA_HEADER_SIZE || position + 8 + DATA_HEADER_SIZE > bb.limit()) {
+            return null;
+          }
+          Sound sound = new Sound();
+          sound.sampleRate = bb.getShort(position + 8) & 0xffff;
+          sound.bitsPerSample = bb.get(position + 14) & 0xff;
+          sound.channels = bb.get(position + 15) & 0xff;
+          sound.encoding = bb.getShort(position + 16) & 0xffff;
+          sound.offset = position + 8 + DATA_HEADER_SIZE;
+          sound.length = Math.min(size - DATA_HEADER_SIZE, bb.limit() - sound.offset);
+          return sound;
+        }
+        // ADPC and Cue# chunks hold seek tables and cue points, which a WAV file has no use for.
+        if (size < 0) {
+          return null;
+        }
+        position += 8 + size;
+      }
+      return null;
+    }
+  }
+}
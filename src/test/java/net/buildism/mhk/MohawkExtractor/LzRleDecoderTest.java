@@ -0,0 +1,285 @@
+package net.buildism.mhk.MohawkExtractor;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+/**
+ * Decodes hand-assembled LZ and RLE8 streams and compares them with the bytes worked out from the
+ * format description. LZ streams start with the uncompressed size, the compressed size and the
+ * dictionary size 0x0400; each flag byte then covers the next eight items, low bit first, 1 for a
+ * literal byte and 0 for a 16-bit reference of a 6-bit length - 3 and a 10-bit ring position - 66.
+ */
+class LzRleDecoderTest {
+
+  @Test
+  void literals() {
+    assertArrayEquals(bytes(1, 2, 3), decodeLz(new LzStream().literal(1, 2, 3).toBytes()));
+  }
+
+  @Test
+  void referenceFieldsAsInTheFormatDescription() {
+    // Three literals, then length 0 + 3 from ring position 0x3be + 66 = 0x400, that is 0.
+    int[] stream = {0x00, 0x00, 0x00, 0x06, 0x00, 0x00, 0x00, 0x06, 0x04, 0x00,
+        0x07, 'a', 'b', 'c', 0x03, 0xbe};
+    assertArrayEquals(bytes('a', 'b', 'c', 'a', 'b', 'c'), decodeLz(bytes(stream)));
+  }
+
+  @Test
+  void overlappingMatchRepeatsItsOwnOutput() {
+    assertArrayEquals(bytes(1, 2, 1, 2, 1, 2, 1),
+        decodeLz(new LzStream().literal(1, 2).match(2, 5).toBytes()));
+    assertArrayEquals(bytes(9, 9, 9, 9, 9),
+        decodeLz(new LzStream().literal(9).match(1, 4).toBytes()));
+  }
+
+  @Test
+  void maximumLengthMatch() {
+    LzStream stream = new LzStream();
+    int[] expected = new int[70 + 66];
+    for (int i = 0; i < 70; i++) {
+      stream.literal(i);
+      expected[i] = i;
+    }
+    for (int i = 0; i < 66; i++) {
+      expected[70 + i] = i;
+    }
+    assertArrayEquals(bytes(expected), decodeLz(stream.match(70, 66).toBytes()));
+  }
+
+  @Test
+  void matchWrapsTheRing() {
+    // At 1040 the ring position is 16, and a distance of 20 reaches back to ring position 1020, so
+    // the match runs from the end of the ring into its start: 1020..1027, which hold i % 251.
+    LzStream stream = literals(1040);
+    int[] expected = concat(modulo(1040), new int[] {16, 17, 18, 19, 20, 21, 22, 23});
+    assertArrayEquals(bytes(expected), decodeLz(stream.match(20, 8).toBytes()));
+  }
+
+  @Test
+  void matchOfAWholeRing() {
+    // A ring position equal to the output's own reaches back the full 1 KB, to 6..13.
+    LzStream stream = literals(1030);
+    int[] expected = concat(modulo(1030), new int[] {6, 7, 8, 9, 10, 11, 12, 13});
+    assertArrayEquals(bytes(expected), decodeLz(stream.match(1024, 8).toBytes()));
+  }
+
+  @Test
+  void matchBeforeTheStartReadsZeros() {
+    assertArrayEquals(bytes(5, 0, 0, 5, 0),
+        decodeLz(new LzStream().literal(5).match(3, 4).toBytes()));
+  }
+
+  @Test
+  void longStreamSlidesTheWindow() {
+    // Far more than one block of output, from matches of 64 bytes 256 back.
+    LzStream stream = new LzStream();
+    for (int i = 0; i < 256; i++) {
+      stream.literal(i);
+    }
+    int[] expected = new int[256 + 64 * 400];
+    for (int i = 0; i < 400; i++) {
+      stream.match(256, 64);
+    }
+    for (int i = 0; i < expected.length; i++) {
+      expected[i] = i & 0xff;
+    }
+    assertArrayEquals(bytes(expected), decodeLz(stream.toBytes()));
+  }
+
+  @Test
+  void rle8RunsAndRowPadding() {
+    // Six indices of an eight-byte row: three literals, then a run of three.
+    int[] stream = {0x00, 0x06, 0x02, 1, 2, 3, 0x82, 9};
+    assertArrayEquals(bytes(1, 2, 3, 9, 9, 9, 0, 0), decode(bytes(stream), false, true, 6, 8, 1));
+  }
+
+  @Test
+  void rle8RunsStopAtTheEndOfTheirRow() {
+    // A run of six and six literals in rows of four; each next row starts from its own byte count.
+    int[] stream = {0x00, 0x02, 0x85, 7, 0x00, 0x07, 0x05, 1, 2, 3, 4, 5, 6, 0x00, 0x02, 0x83, 8};
+    assertArrayEquals(bytes(7, 7, 7, 7, 1, 2, 3, 4, 8, 8, 8, 8),
+        decode(bytes(stream), false, true, 4, 4, 3));
+  }
+
+  @Test
+  void rle8SkipsBytesPastTheRunsOfARow() {
+    int[] stream = {0x00, 0x04, 0x81, 7, 0xee, 0xee, 0x00, 0x02, 0x81, 8};
+    assertArrayEquals(bytes(7, 7, 8, 8), decode(bytes(stream), false, true, 2, 2, 2));
+  }
+
+  @Test
+  void rle8ManyRows() {
+    // Enough rows that most runs are read without per-byte checks.
+    int[] stream = new int[4 * 100];
+    int[] expected = new int[3 * 100];
+    for (int y = 0; y < 100; y++) {
+      System.arraycopy(new int[] {0x00, 0x02, 0x82, y}, 0, stream, 4 * y, 4);
+      expected[3 * y] = expected[3 * y + 1] = expected[3 * y + 2] = y;
+    }
+    assertArrayEquals(bytes(expected), decode(bytes(stream), false, true, 3, 3, 100));
+  }
+
+  @Test
+  void lzThenRle8() {
+    byte[] stream = new LzStream().literal(0x00, 0x02, 0x83, 7).match(4, 4).toBytes();
+    assertArrayEquals(bytes(7, 7, 7, 7, 7, 7, 7, 7), decode(stream, true, true, 4, 4, 2));
+  }
+
+  /** Each row is whether the stream is LZ and RLE8, and the stream in hex. */
+  @ParameterizedTest(name = "{2}")
+  @CsvSource(delimiter = '|', value = {
+      // The header promises ten bytes, but only three literals follow.
+      "true  | false | 00 00 00 0a 00 00 00 04 04 00 ff 01 02 03",
+      // A reference cut after its first byte.
+      "true  | false | 00 00 00 07 00 00 00 05 04 00 03 01 02 0b",
+      // A header cut short.
+      "true  | false | 00 00 00 07 00 00",
+      // A row that promises more literals than follow.
+      "false | true  | 00 06 02 01 02",
+      // LZ output that ends in the middle of an RLE8 run.
+      "true  | true  | 00 00 00 03 00 00 00 04 04 00 07 00 06 82",
+  })
+  void truncatedStream(boolean lz, boolean rle, String stream) {
+    assertThrows(IllegalArgumentException.class,
+        () -> decode(bytes(hex(stream)), lz, rle, 4, 4, 1));
+  }
+
+  @Test
+  void unsupportedDictionarySize() {
+    int[] stream = {0x00, 0x00, 0x00, 0x01, 0x00, 0x00, 0x00, 0x02, 0x08, 0x00, 0x01, 0x05};
+    assertThrows(IllegalArgumentException.class, () -> decode(bytes(stream), true, false, 1, 1, 1));
+  }
+
+  /** Decodes an LZ stream into as many bytes as its header promises. */
+  private static byte[] decodeLz(byte[] stream) {
+    int size = (stream[0] & 0xff) << 24 | (stream[1] & 0xff) << 16 | (stream[2] & 0xff) << 8
+        | stream[3] & 0xff;
+    return decode(stream, true, false, size, size, 1);
+  }
+
+  private static byte[] decode(byte[] stream, boolean lz, boolean rle, int width, int bytesPerRow,
+      int height) {
+    // Padding on both sides, to check the offset and length are honoured. The bytes after the
+    // stream are literal flags and literals, so a decoder reading past its end would not fail.
+    byte[] data = new byte[1 + stream.length + 16];
+    data[0] = (byte) 0xaa;
+    System.arraycopy(stream, 0, data, 1, stream.length);
+    for (int i = 1 + stream.length; i < data.length; i++) {
+      data[i] = (byte) 0xff;
+    }
+    return LzRleDecoder.decompress(data, 1, stream.length, lz, rle, width, bytesPerRow, height);
+  }
+
+  /** Returns a stream of the literals i % 251 for i below {@code count}. */
+  private static LzStream literals(int count) {
+    LzStream stream = new LzStream();
+    for (int value : modulo(count)) {
+      stream.literal(value);
+    }
+    return stream;
+  }
+
+  private static int[] modulo(int count) {
+    int[] values = new int[count];
+    for (int i = 0; i < count; i++) {
+      values[i] = i % 251;
+    }
+    return values;
+  }
+
+  private static byte[] bytes(int... values) {
+    byte[] bytes = new byte[values.length];
+    for (int i = 0; i < values.length; i++) {
+      bytes[i] = (byte) values[i];
+    }
+    return bytes;
+  }
+
+  private static int[] hex(String bytes) {
+    String[] parts = bytes.trim().split("\\s+");
+    int[] values = new int[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      values[i] = Integer.parseInt(parts[i], 16);
+    }
+    return values;
+  }
+
+  private static int[] concat(int[]... arrays) {
+    int length = 0;
+    for (int[] array : arrays) {
+      length += array.length;
+    }
+    int[] result = new int[length];
+    int position = 0;
+    for (int[] array : arrays) {
+      System.arraycopy(array, 0, result, position, array.length);
+      position += array.length;
+    }
+    return result;
+  }
+
+  /** Assembles an LZ stream from literals and matches given by distance back and length. */
+  private static class LzStream {
+    private final ByteArrayOutputStream items = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream group = new ByteArrayOutputStream();
+    private int flags;
+    private int count;
+    private int size;
+
+    LzStream literal(int... values) {
+      for (int value : values) {
+        flags |= 1 << count;
+        group.write(value);
+        next(1);
+      }
+      return this;
+    }
+
+    LzStream match(int distance, int length) {
+      int ringPosition = (size - distance) & 0x3ff;
+      int reference = (length - 3) << 10 | (ringPosition - 66) & 0x3ff;
+      group.write(reference >>> 8);
+      group.write(reference);
+      next(length);
+      return this;
+    }
+
+    private void next(int length) {
+      size += length;
+      if (++count == 8) {
+        flush();
+      }
+    }
+
+    private void flush() {
+      items.write(flags);
+      items.writeBytes(group.toByteArray());
+      group.reset();
+      flags = 0;
+      count = 0;
+    }
+
+    byte[] toBytes() {
+      if (count > 0) {
+        flush();
+      }
+      byte[] body = items.toByteArray();
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      for (int value : new int[] {size, body.length}) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+      }
+      out.write(0x04);
+      out.write(0x00);
+      out.writeBytes(body);
+      return out.toByteArray();
+    }
+  }
+}
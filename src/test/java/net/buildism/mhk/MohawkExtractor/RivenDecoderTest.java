@@ -0,0 +1,197 @@
+package net.buildism.mhk.MohawkExtractor;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+/**
+ * Decodes hand-assembled Riven streams and compares them with the palette indices worked out from
+ * the format description. Unless a test says otherwise, every stream starts with the two duplets
+ * 10 20 30 40, so the last duplet before the command under test is (30, 40).
+ */
+class RivenDecoderTest {
+
+  private static final int[] START = {0x02, 10, 20, 30, 40};
+
+  @Test
+  void literalDuplets() {
+    assertDecodes(pixels(10, 20, 30, 40), START);
+  }
+
+  @Test
+  void repeatLastDuplet() {
+    assertDecodes(pixels(10, 20, 30, 40, 30, 40, 30, 40), START, 0x42);
+  }
+
+  @Test
+  void repeatLastTwoDuplets() {
+    assertDecodes(pixels(10, 20, 30, 40, 10, 20, 30, 40), START, 0x81);
+  }
+
+  @Test
+  void endOfStreamStopsDecoding() {
+    assertDecodes(pixels(10, 20, 30, 40, 0, 0), START, 0x00, 0x01, 50, 60);
+  }
+
+  /** Each row is a subcommand with its argument bytes in hex, and the duplet it should produce. */
+  @ParameterizedTest(name = "{0}")
+  @CsvSource(delimiter = '|', value = {
+      "02       | 10 20",  // duplet at -2 duplets
+      "10 07    | 30 07",  // last duplet, second pixel replaced
+      "14       | 30 20",  // first pixel of last duplet, pixel at -4 from the second
+      "25       | 30 45",  // last duplet, second pixel + 5
+      "35       | 30 35",  // last duplet, second pixel - 5
+      "40 07    | 07 40",  // last duplet, first pixel replaced
+      "43       | 20 40",  // pixel at -3, second pixel of last duplet
+      "50 07 08 | 07 08",  // two absolute pixels
+      "53 07    | 20 07",  // pixel at -3, then absolute
+      "5c 07    | 07 20",  // absolute, then pixel at -4 from the second
+      "65 07    | 07 45",  // absolute, then second pixel + 5
+      "75 07    | 07 35",  // absolute, then second pixel - 5
+      "85       | 35 40",  // last duplet, first pixel + 5
+      "95 07    | 35 07",  // first pixel + 5, then absolute
+      "a0 35    | 33 45",  // last duplet + 3, + 5
+      "b0 35    | 33 35",  // last duplet + 3, - 5
+      "c5       | 25 40",  // last duplet, first pixel - 5
+      "d5 07    | 25 07",  // first pixel - 5, then absolute
+      "e0 35    | 27 45",  // last duplet - 3, + 5
+      "f0 35    | 27 35",  // last duplet - 3, - 5
+      "ff 05    | 46 35",  // last duplet - 0xf0 (wrapping), - 5
+  })
+  void subcommand(String command, String duplet) {
+    int[] stream = concat(START, new int[] {0xc1}, hex(command));
+    assertDecodes(pixels(concat(new int[] {10, 20, 30, 40}, decimal(duplet))), stream);
+  }
+
+  @Test
+  void subcommandsShareOneCommand() {
+    assertDecodes(pixels(10, 20, 30, 40, 30, 45, 35, 45, 10, 20),
+        START, 0xc3, 0x25, 0x85, 0x04);
+  }
+
+  /** Copies with the lengths and literal flags of the 1x1xxxmm table, from far enough back. */
+  @ParameterizedTest(name = "{0}")
+  @CsvSource({
+      "a4, 2, true", "a8, 2, false", "ac, 3, true", "b4, 3, false", "b8, 4, true",
+      "bc, 4, false", "e4, 5, true", "e8, 5, false", "ec, 6, true", "f4, 6, false",
+      "f8, 7, true",
+  })
+  void copy(String sub, int duplets, boolean literal) {
+    // 126 distinct pixels 0..125, then a copy from 100 pixels back.
+    int[] stream = new int[1 + 126];
+    stream[0] = 0x3f;
+    int[] expected = new int[126 + 2 * duplets];
+    for (int i = 0; i < 126; i++) {
+      stream[1 + i] = i;
+      expected[i] = i;
+    }
+    for (int i = 0; i < 2 * duplets; i++) {
+      expected[126 + i] = 26 + i;
+    }
+    int[] copy = {0xc1, Integer.parseInt(sub, 16), 100};
+    if (literal) {
+      copy = concat(copy, new int[] {0xee});
+      expected[expected.length - 1] = 0xee;
+    }
+    assertDecodes(pixels(expected), concat(stream, copy));
+  }
+
+  @Test
+  void overlappingCopyRepeatsItsOwnOutput() {
+    assertDecodes(pixels(10, 20, 30, 40, 30, 40, 30, 40, 30, 9), START, 0xc1, 0xac, 0x02, 9);
+  }
+
+  @Test
+  void copyTakesHighOffsetBitsFromTheSubcommand() {
+    // 50 60, then 10 20 30 40 repeated to 258 pixels, then a copy from 258 pixels back.
+    int[] stream = {0x01, 50, 60, 0x02, 10, 20, 30, 40, 0xbf, 0xc1, 0xa9, 0x02};
+    int[] expected = new int[262];
+    expected[0] = 50;
+    expected[1] = 60;
+    for (int i = 2; i < 258; i++) {
+      expected[i] = 10 * ((i - 2) % 4 + 1);
+    }
+    expected[258] = 50;
+    expected[259] = 60;
+    expected[260] = 10;
+    expected[261] = 20;
+    assertDecodes(pixels(expected), stream);
+  }
+
+  @Test
+  void longCopy() {
+    // n = 1 + 2 duplets, r = 1 so no literal, m = 4.
+    assertDecodes(pixels(10, 20, 30, 40, 10, 20, 30, 40, 10, 20), START, 0xc1, 0xfc, 0x0c, 0x04);
+  }
+
+  @Test
+  void longCopyWithLiteral() {
+    assertDecodes(pixels(10, 20, 30, 40, 10, 20, 30, 40, 10, 9),
+        START, 0xc1, 0xfc, 0x08, 0x04, 9);
+  }
+
+  @ParameterizedTest(name = "{0}")
+  @CsvSource({"00", "58"})
+  void invalidSubcommand(String sub) {
+    int[] stream = concat(START, new int[] {0xc1}, hex(sub));
+    assertThrows(RuntimeException.class, () -> decode(stream, 6));
+  }
+
+  private static void assertDecodes(byte[] expected, int[] stream, int... more) {
+    assertArrayEquals(expected, decode(concat(stream, more), expected.length));
+  }
+
+  private static byte[] decode(int[] stream, int pixels) {
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    // Some padding in front, to check the offset is honoured.
+    data.write(0xaa);
+    for (int b : stream) {
+      data.write(b);
+    }
+    byte[] bytes = data.toByteArray();
+    return RivenDecoder.decompress(bytes, 1, bytes.length - 1, pixels, 1);
+  }
+
+  private static byte[] pixels(int... values) {
+    byte[] pixels = new byte[values.length];
+    for (int i = 0; i < values.length; i++) {
+      pixels[i] = (byte) values[i];
+    }
+    return pixels;
+  }
+
+  private static int[] hex(String bytes) {
+    return parse(bytes, 16);
+  }
+
+  private static int[] decimal(String bytes) {
+    return parse(bytes, 10);
+  }
+
+  private static int[] parse(String bytes, int radix) {
+    String[] parts = bytes.trim().split("\\s+");
+    int[] values = new int[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      values[i] = Integer.parseInt(parts[i], radix);
+    }
+    return values;
+  }
+
+  private static int[] concat(int[]... arrays) {
+    int length = 0;
+    for (int[] array : arrays) {
+      length += array.length;
+    }
+    int[] result = new int[length];
+    int position = 0;
+    for (int[] array : arrays) {
+      System.arraycopy(array, 0, result, position, array.length);
+      position += array.length;
+    }
+    return result;
+  }
+}